@@ -0,0 +1,141 @@
+package battlesnake.application;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import battlesnake.packets.TFTPPacket;
+
+/*
+ * Measures the cost of decoding and encoding TFTP packets, in nanoseconds
+ * and (where the JVM can count them) bytes allocated per packet. Each
+ * packet is decoded both into a new object, as every datagram used to be,
+ * and into one object reused packet after packet, as the session and
+ * multicast receive threads now do.
+ */
+public class Bench_Codec {
+
+	/* A codec operation, run over and over */
+	private static abstract class Operation {
+		public final String name;
+
+		public Operation(String name) {
+			this.name = name;
+		}
+
+		/* Run once, returning something derived from the result so that it is not optimised away */
+		public abstract long run();
+	}
+
+	/* Default number of operations to time, after as many to warm up */
+	private static final int Iterations = 5000000;
+
+	/* Sum of the results, printed so that no operation is optimised away */
+	private static long sink = 0;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			System.out.print("Usage: Bench_Codec [<iterations>]\n");
+			System.exit(1);
+		}
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : Iterations;
+		ByteBuffer payload = ByteBuffer.allocate(1428);
+		final TFTPPacket rrq = TFTPPacket.RRQ("pxelinux.cfg/01-00-11-22-33-44-55", "octet", new String[] { "blksize", "windowsize", "tsize" }, new String[] { "1428", "16", "0" });
+		final TFTPPacket data = TFTPPacket.DATA(1234, payload);
+		final TFTPPacket ack = TFTPPacket.ACK(1234);
+		final TFTPPacket error = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, "Transfer cancelled by user");
+		final TFTPPacket oack = TFTPPacket.OACK(new String[] { "blksize", "windowsize", "tsize" }, new String[] { "1428", "16", "3000000" });
+		Operation[] operations = {
+				Decode("decode ACK", ack.Encode(), false),
+				Decode("decode ACK", ack.Encode(), true),
+				Decode("decode DATA", data.Encode(), false),
+				Decode("decode DATA", data.Encode(), true),
+				Decode("decode ERROR", error.Encode(), false),
+				Decode("decode ERROR", error.Encode(), true),
+				Decode("decode RRQ", rrq.Encode(), false),
+				Decode("decode RRQ", rrq.Encode(), true),
+				new Operation("encode ACK") {
+					@Override
+					public long run() {
+						return ack.Encode().limit();
+					}
+				},
+				new Operation("encode DATA") {
+					@Override
+					public long run() {
+						return data.Encode().limit();
+					}
+				},
+				new Operation("encode ERROR") {
+					@Override
+					public long run() {
+						return error.Encode().limit();
+					}
+				},
+				new Operation("encode OACK") {
+					@Override
+					public long run() {
+						return oack.Encode().limit();
+					}
+				}
+		};
+		System.out.print(String.format("%-28s %10s %10s\n", "operation", "ns/op", "bytes/op"));
+		for (Operation op : operations) {
+			/* Warm up, so that the operation is compiled before it is timed */
+			Time(op, iterations);
+			long allocated = Allocated();
+			long time = Time(op, iterations);
+			allocated = Allocated() - allocated;
+			System.out.print(String.format("%-28s %10.1f %10s\n", op.name, (double) time / iterations, allocated < 0 ? "-" : String.format("%.1f", (double) allocated / iterations)));
+		}
+		System.out.print("(" + sink + ")\n");
+	}
+
+	/* Decode an encoded packet, into a new object or into the same one each time */
+	private static Operation Decode(String name, final ByteBuffer source, boolean reuse) {
+		if (reuse)
+			return new Operation(name + " (reused packet)") {
+				private final TFTPPacket pkt = new TFTPPacket();
+
+				@Override
+				public long run() {
+					source.rewind();
+					pkt.Decode(source);
+					return pkt.op + pkt.block_id;
+				}
+			};
+		return new Operation(name + " (new packet)") {
+			@Override
+			public long run() {
+				source.rewind();
+				TFTPPacket pkt = new TFTPPacket(source);
+				return pkt.op + pkt.block_id;
+			}
+		};
+	}
+
+	/* Run an operation a number of times, returns the time taken (nanoseconds) */
+	private static long Time(Operation op, int iterations) {
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			sum += op.run();
+		long time = System.nanoTime() - start;
+		sink += sum;
+		return time;
+	}
+
+	/* Bytes allocated by this thread so far, or -1 if the JVM does not count them */
+	private static long Allocated() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			if (bean instanceof com.sun.management.ThreadMXBean)
+				return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		/* Not a HotSpot-derived JVM */
+		catch (LinkageError e) {
+		}
+		return -1;
+	}
+
+}
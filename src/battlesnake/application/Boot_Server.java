@@ -11,11 +11,14 @@ import java.util.Map;
 
 import battlesnake.bootserver.Configuration;
 import battlesnake.bootserver.DHCP;
+import battlesnake.bootserver.HTTP;
 import battlesnake.bootserver.TFTP;
 import battlesnake.logging.Entry;
 import battlesnake.logging.Listener;
 import battlesnake.logging.Log;
+import battlesnake.logging.Statistics;
 import battlesnake.packets.IP;
+import battlesnake.storage.Root;
 import battlesnake.utils.Input;
 import battlesnake.utils.Network;
 
@@ -164,29 +167,34 @@ public class Boot_Server {
 		/*
 		 * Ensure that we actually have a server to run
 		 */
-		if (!(Configuration.dhcp_enabled || Configuration.tftp_enabled))
+		if (!(Configuration.dhcp_enabled || Configuration.tftp_enabled || Configuration.http_enabled))
 			throw new Exception("No servers are enabled in the configuration");
 	}
 
 	/* Start the necessary server(s) */
-	private void startServers(DHCP dhcp, TFTP tftp) throws Exception {
+	private void startServers(DHCP dhcp, TFTP tftp, HTTP http) throws Exception {
 		if (Configuration.dhcp_enabled) {
 			dhcp.Start(true);
 		}
 		if (Configuration.tftp_enabled) {
 			tftp.Start(true);
 		}
+		if (Configuration.http_enabled) {
+			http.Start(true);
+		}
 	}
 
 	/* Run until a server stops */
-	private void runServers(DHCP dhcp, TFTP tftp) throws Exception {
-		while ((dhcp.getRunning() || !Configuration.dhcp_enabled) && (tftp.getRunning() || !Configuration.tftp_enabled)) {
+	private void runServers(DHCP dhcp, TFTP tftp, HTTP http) throws Exception {
+		while ((dhcp.getRunning() || !Configuration.dhcp_enabled) && (tftp.getRunning() || !Configuration.tftp_enabled)
+				&& (http.getRunning() || !Configuration.http_enabled)) {
 			Thread.sleep(100);
 			char c = Character.toUpperCase((char) System.in.read());
 			/* User wants to close the servers */
 			if (c == 'C') {
 				dhcp.Stop();
 				tftp.Stop();
+				http.Stop();
 			}
 			/* User wants to save the configuration */
 			else if (c == 'S') {
@@ -200,6 +208,18 @@ public class Boot_Server {
 				}
 				System.out.print("\n");
 			}
+			/* User wants to see the TFTP transfers */
+			else if (c == 'T') {
+				if (tftp.getRunning()) {
+					tftp.ShowSessions();
+				}
+				System.out.print("\n");
+			}
+			/* User wants to see the statistics */
+			else if (c == 'I') {
+				Statistics.Show();
+				System.out.print("\n");
+			}
 		}
 	}
 
@@ -217,13 +237,21 @@ public class Boot_Server {
 			try {
 				/* Load and validate the configuration */
 				prepareConfiguration();
-				/* Create the servers */
-				DHCP dhcp = new DHCP();
-				TFTP tftp = new TFTP();
-				/* Start the necessary server(s) */
-				startServers(dhcp, tftp);
-				/* Run until a server stops */
-				runServers(dhcp, tftp);
+				/* Open the files to serve */
+				Root root = new Root(Configuration.tftp_root_folder, Configuration.tftp_root_image, Configuration.tftp_windows_symlink_hack, Configuration.tftp_templates, Configuration.tftp_virtual_files);
+				try {
+					/* Create the servers */
+					DHCP dhcp = new DHCP();
+					TFTP tftp = new TFTP(root);
+					HTTP http = new HTTP(root);
+					/* Start the necessary server(s) */
+					startServers(dhcp, tftp, http);
+					/* Run until a server stops */
+					runServers(dhcp, tftp, http);
+				}
+				finally {
+					root.close();
+				}
 			}
 			/* Oops */
 			catch (Exception e) {
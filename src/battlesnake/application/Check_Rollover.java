@@ -0,0 +1,228 @@
+package battlesnake.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import battlesnake.bootserver.Configuration;
+import battlesnake.bootserver.TFTP;
+import battlesnake.logging.Entry;
+import battlesnake.logging.Listener;
+import battlesnake.logging.Log;
+import battlesnake.storage.Root;
+
+/*
+ * Checks a TFTP transfer of more than 65535 blocks end to end. A sparse
+ * file, with its own offset written into it every megabyte, is served from
+ * a temporary root on the loopback interface and downloaded by a minimal
+ * windowed client, which follows the block numbers as they roll over and
+ * compares every block with the file.
+ */
+public class Check_Rollover {
+
+	/* Port to serve on, unprivileged so that no root is needed */
+	private static final int Port = 6969;
+	/* Bytes between the offsets written into the file */
+	private static final int Stride = 1048576;
+	/* Client timeout (milliseconds) and retries */
+	private static final int Timeout = 1000;
+	private static final int Retries = 5;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	public static void main(String[] args) {
+		if (args.length > 3) {
+			System.out.print("Usage: Check_Rollover [<size> [<blksize> [<windowsize>]]]\n");
+			System.exit(1);
+		}
+		long size = args.length > 0 ? Long.parseLong(args[0]) : 64L * 1048576L;
+		int blocksize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+		int windowsize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		if (size / blocksize + 1 <= 65535) {
+			System.out.print("A file of " + size + " bytes is only " + (size / blocksize + 1) + " blocks of " + blocksize + " bytes, which do not roll over\n");
+			System.exit(1);
+		}
+		/* Copy errors and warnings to STDERR */
+		Log.Subscribe(new Listener() {
+			@Override
+			public void OnMessage(Entry msg) {
+				if (!msg.toString().contains("\tinfo\t"))
+					System.err.print(msg.toString() + "\n");
+			}
+		});
+		File folder = null;
+		File file = null;
+		try {
+			folder = File.createTempFile("rollover", "");
+			folder.delete();
+			folder.mkdir();
+			file = new File(folder, "rollover.img");
+			MakeFile(file, size);
+			long start = System.nanoTime();
+			long blocks = Serve(folder, file, size, blocksize, windowsize);
+			System.out.print(String.format("Received %d blocks of %d bytes (block numbers rolled over %d times) in %.1f s, every block matches %s\n", blocks, blocksize, blocks / 65536, (System.nanoTime() - start) / 1e9, file));
+		}
+		catch (Exception e) {
+			System.out.print("Check failed: " + e.getMessage() + "\n");
+			System.exit(1);
+		}
+		finally {
+			if (file != null)
+				file.delete();
+			if (folder != null)
+				folder.delete();
+		}
+		System.exit(0);
+	}
+
+	/* Create a sparse file with its offset written into it every Stride bytes */
+	private static void MakeFile(File file, long size) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try {
+			f.setLength(size);
+			for (long offset = 0; offset + 8 <= size; offset += Stride) {
+				f.seek(offset);
+				f.writeLong(offset);
+			}
+		}
+		finally {
+			f.close();
+		}
+	}
+
+	/* Serve the folder and download the file from it, returns the number of blocks received */
+	private static long Serve(File folder, File file, long size, int blocksize, int windowsize) throws Exception {
+		Configuration.network_address = 0x7f000001;
+		Configuration.network_interface = "lo";
+		Configuration.tftp_server_port = Port;
+		Configuration.tftp_root_folder = folder.getPath();
+		Configuration.tftp_max_windowsize = Math.max(Configuration.tftp_max_windowsize, windowsize);
+		Configuration.tftp_warmup = false;
+		Configuration.tftp_multicast_enabled = false;
+		Root root = new Root(Configuration.tftp_root_folder, "", false, "", "");
+		TFTP tftp = new TFTP(root);
+		try {
+			tftp.Start(true);
+			if (!tftp.getRunning())
+				throw new IOException("The TFTP server did not start");
+			return Download(file, size, blocksize, windowsize);
+		}
+		finally {
+			tftp.Stop();
+			while (tftp.getRunning())
+				Thread.sleep(50);
+			root.close();
+		}
+	}
+
+	/*
+	 * Download the file as an RFC 7440 client would, acknowledging every
+	 * windowsize blocks and on a gap, and compare each block with the file
+	 */
+	private static long Download(File file, long size, int blocksize, int windowsize) throws IOException {
+		DatagramSocket s = new DatagramSocket();
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			s.setSoTimeout(Timeout);
+			SocketAddress server = new InetSocketAddress("127.0.0.1", Port);
+			DatagramPacket rrq = Request(file.getName(), blocksize, windowsize, server);
+			s.send(rrq);
+			byte[] buf = new byte[blocksize + 4];
+			byte[] want = new byte[blocksize];
+			boolean started = false;
+			long expect = 1;
+			long acked = 0;
+			int timeouts = 0;
+			while (true) {
+				DatagramPacket p = new DatagramPacket(buf, buf.length);
+				try {
+					s.receive(p);
+					timeouts = 0;
+				}
+				catch (SocketTimeoutException e) {
+					if (++timeouts > Retries)
+						throw new IOException("Transfer timed out at block " + expect);
+					if (!started)
+						s.send(rrq);
+					else
+						s.send(Ack(expect - 1, server));
+					continue;
+				}
+				ByteBuffer b = ByteBuffer.wrap(buf, 0, p.getLength());
+				int op = b.getShort() & 0xffff;
+				/* The transfer runs on the server's new port */
+				if (!started) {
+					server = p.getSocketAddress();
+					started = true;
+				}
+				if (op == 5)
+					throw new IOException("The server sent error " + (b.getShort() & 0xffff) + ": " + new String(buf, 4, Math.max(0, p.getLength() - 5), ASCII));
+				/* OACK, which must grant the block size asked for */
+				if (op == 6) {
+					String oack = new String(buf, 2, p.getLength() - 2, ASCII);
+					if (!oack.contains("blksize\0" + blocksize + "\0"))
+						throw new IOException("The server did not grant a block size of " + blocksize + ": " + oack.replace('\0', ' '));
+					s.send(Ack(0, server));
+					continue;
+				}
+				if (op != 3)
+					continue;
+				int block = b.getShort() & 0xffff;
+				/* A block out of order, acknowledge the blocks received so far unless it is a duplicate */
+				if (block != (expect & 0xffff)) {
+					if (((block - expect) & 0xffff) < 0x8000 && acked < expect - 1) {
+						s.send(Ack(expect - 1, server));
+						acked = expect - 1;
+					}
+					continue;
+				}
+				long offset = (expect - 1) * blocksize;
+				int length = (int) Math.min(blocksize, size - offset);
+				if (p.getLength() - 4 != length)
+					throw new IOException("Block " + expect + " has " + (p.getLength() - 4) + " bytes instead of " + length);
+				f.readFully(want, 0, length);
+				if (!Arrays.equals(Arrays.copyOfRange(buf, 4, 4 + length), Arrays.copyOf(want, length)))
+					throw new IOException("Block " + expect + " (offset " + offset + ") does not match the file");
+				boolean last = length < blocksize;
+				if (last || expect - acked >= windowsize) {
+					s.send(Ack(expect, server));
+					acked = expect;
+				}
+				if (last)
+					return expect;
+				expect++;
+			}
+		}
+		finally {
+			f.close();
+			s.close();
+		}
+	}
+
+	/* A RRQ for a file, asking for the block size, window size and transfer size */
+	private static DatagramPacket Request(String filename, int blocksize, int windowsize, SocketAddress server) {
+		String[] fields = { filename, "octet", "blksize", Integer.toString(blocksize), "windowsize", Integer.toString(windowsize), "tsize", "0" };
+		ByteBuffer b = ByteBuffer.allocate(512);
+		b.putShort((short) 1);
+		for (String field : fields)
+			b.put(field.getBytes(ASCII)).put((byte) 0);
+		return new DatagramPacket(b.array(), b.position(), server);
+	}
+
+	/* An ACK of a block, by its 16-bit block number */
+	private static DatagramPacket Ack(long block, SocketAddress server) {
+		ByteBuffer b = ByteBuffer.allocate(4);
+		b.putShort((short) 4);
+		b.putShort((short) block);
+		return new DatagramPacket(b.array(), 4, server);
+	}
+
+}
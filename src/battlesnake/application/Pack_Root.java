@@ -0,0 +1,27 @@
+package battlesnake.application;
+
+import battlesnake.storage.RootImage;
+
+/*
+ * Packs a TFTP root folder into a root image, for the tftp_root_image
+ * setting. A server already serving the image switches to the new one.
+ */
+public class Pack_Root {
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.print("Usage: Pack_Root <folder> <image>\n");
+			System.exit(1);
+		}
+		try {
+			long start = System.nanoTime();
+			int count = RootImage.Pack(args[0], args[1]);
+			System.out.print(String.format("Packed %d files from %s into %s in %.1f s\n", count, args[0], args[1], (System.nanoTime() - start) / 1e9));
+		}
+		catch (Exception e) {
+			System.out.print("Cannot pack " + args[0] + ": " + e.getMessage() + "\n");
+			System.exit(1);
+		}
+	}
+
+}
@@ -44,8 +44,84 @@ public class Configuration {
 	public static boolean tftp_enabled = true;
 	public static short tftp_server_port = 69;
 	public static boolean tftp_log_packets = false;
+	/*
+	 * Largest TFTP window (RFC 7440) to grant a client, i.e. the number of
+	 * DATA blocks sent before waiting for an ACK. 1 disables the option.
+	 */
+	public static int tftp_max_windowsize = 32;
+	/*
+	 * Adapt the blocks of a window sent per round trip to each client's
+	 * losses (TCP-style congestion control), up to the window size
+	 */
+	public static boolean tftp_congestion_control = true;
+	/*
+	 * Limit the block size so DATA packets fit the MTU of the network
+	 * interface (only using an MTU over 1500 if tftp_blocksize_jumbo is
+	 * set), and offer a smaller block size to a client whose transfers
+	 * needed tftp_blocksize_shrink_retries retransmissions in a row (0
+	 * to never shrink)
+	 */
+	public static boolean tftp_blocksize_mtu = true;
+	public static boolean tftp_blocksize_jumbo = false;
+	public static int tftp_blocksize_shrink_retries = 2;
+	/*
+	 * Retransmission of unacknowledged TFTP DATA: the timeout adapts to
+	 * each client's round-trip time within min..max (milliseconds), and
+	 * the transfer is abandoned after this many consecutive retries
+	 */
+	public static int tftp_retransmit_timeout_initial = 1000;
+	public static int tftp_retransmit_timeout_min = 100;
+	public static int tftp_retransmit_timeout_max = 5000;
+	public static int tftp_retransmit_retries = 6;
+	/*
+	 * Rate limits for TFTP data (kilobytes per second, 0 for no limit),
+	 * for all transfers together and for each client, with bursts of up
+	 * to tftp_rate_burst kilobytes
+	 */
+	public static int tftp_rate_limit = 0;
+	public static int tftp_client_rate_limit = 0;
+	public static int tftp_rate_burst = 256;
+	/*
+	 * Most TFTP transfers at once (0 for no limit), further RRQs waiting
+	 * in a queue of up to tftp_queue_length requests. Files of up to
+	 * tftp_small_file kilobytes are small: their requests leave the queue
+	 * first, and within the overall rate limit their blocks are sent first.
+	 */
+	public static int tftp_max_transfers = 0;
+	public static int tftp_queue_length = 256;
+	public static int tftp_small_file = 1024;
+	/*
+	 * Multicast TFTP (RFC 2090): clients reading the same file share one
+	 * transmission, sent to a group address allocated from the range of
+	 * tftp_multicast_address_count addresses starting at
+	 * tftp_multicast_address
+	 */
+	public static boolean tftp_multicast_enabled = false;
+	public static int tftp_multicast_address = 0xefff0001;
+	public static int tftp_multicast_address_count = 16;
+	public static short tftp_multicast_port = 1758;
 	/* TFTP root folder */
 	public static String tftp_root_folder = "/tftp";
+	/*
+	 * Root image (packed with Pack_Root) to serve files from instead of
+	 * the root folder, if set. Replacing the image file switches to the
+	 * new image without a restart.
+	 */
+	public static String tftp_root_image = "";
+	/*
+	 * Files rendered per client from templates in the root, as
+	 * space-separated "pattern=template" pairs: a requested path matching
+	 * the glob pattern, for which there is no file, is rendered from the
+	 * template with the client's attributes
+	 */
+	public static String tftp_templates = "";
+	/*
+	 * Files made of other files in the root one after another, as
+	 * space-separated "path=part,part,..." declarations, each part
+	 * optionally a byte range ("part@offset:length") and with the client's
+	 * attributes substituted into it
+	 */
+	public static String tftp_virtual_files = "";
 	/*
 	 * Windows symlink hack for TFTP server:
 	 * 
@@ -60,15 +136,73 @@ public class Configuration {
 	 * - File contents ~= /^[A-Za-z0-9-_\.]+$/
 	 * 
 	 * The contents of a matching file are treated as a relative path and
-	 * the link is followed by the server.
-	 * 
-	 * -TODO: ensure that the path parser follows each path element as it
-	 * decodes them, so it can follow symlinks to directories.
+	 * the link is followed by the server. Each element of a requested path
+	 * is followed as it is decoded, so links to folders (and links to
+	 * links) work too. Resolved paths are cached until something in the
+	 * root folder changes.
 	 */
 	public static boolean tftp_windows_symlink_hack = true;
+	/*
+	 * Files served over TFTP are memory-mapped and shared between
+	 * sessions, a mapping is released once no session has used it for
+	 * this many seconds
+	 */
+	public static int tftp_mapping_idle_timeout = 60;
+	/*
+	 * Files of up to tftp_cache_max_file_size megabytes are held in memory,
+	 * up to a total of tftp_cache_size megabytes (0 disables the cache), in
+	 * direct buffers outside of the heap if tftp_cache_offheap is set
+	 */
+	public static int tftp_cache_size = 128;
+	public static int tftp_cache_max_file_size = 32;
+	public static boolean tftp_cache_offheap = true;
+	/*
+	 * Files loaded into memory when the TFTP server starts, in parallel:
+	 * the boot file and the files under the root folder matching the
+	 * space-separated glob patterns of tftp_warmup_files (off unless
+	 * enabled, as it reads files which may never be requested)
+	 */
+	public static boolean tftp_warmup = false;
+	public static String tftp_warmup_files = "*.c32 pxelinux.cfg/*";
+	/*
+	 * Read-ahead of files being sent, in aligned chunks of tftp_readahead
+	 * kilobytes (0 for none) loaded by tftp_readahead_threads threads
+	 */
+	public static int tftp_readahead = 256;
+	public static int tftp_readahead_threads = 4;
+	/*
+	 * Learn the order in which booting clients request files, and load
+	 * the files a client is likely to request next into memory (off unless
+	 * enabled, as a wrong guess reads a file for nothing)
+	 */
+	public static boolean tftp_prefetch = false;
+	/*
+	 * Uploads (WRQ), received into a folder per client (named by its IP
+	 * address) under tftp_upload_folder, each client's folder limited to
+	 * tftp_upload_quota megabytes (0 for no limit)
+	 */
+	public static boolean tftp_upload_enabled = false;
+	public static String tftp_upload_folder = "/tftp-uploads";
+	public static int tftp_upload_quota = 1024;
+	/* HTTP server, for the same files as the TFTP server */
+	public static boolean http_enabled = false;
+	public static short http_server_port = 80;
+	public static boolean http_log_requests = false;
+	/*
+	 * Threads handling HTTP connections, and seconds after which an idle
+	 * connection is closed
+	 */
+	public static int http_threads = 2;
+	public static int http_keepalive_timeout = 15;
 	/* BOOTP/DHCP filename */
 	public static String boot_file = "pxelinux.0";
 	public static int boot_file_size = 0;
+	/*
+	 * File handed out as an HTTP URL instead of boot_file, to clients
+	 * which can boot over HTTP (iPXE and UEFI HTTP boot), if the HTTP
+	 * server is enabled
+	 */
+	public static String http_boot_file = "";
 
 	public static boolean Load(String filename) {
 		return Serializer.Load(filename);
@@ -12,6 +12,7 @@ import battlesnake.logging.Log;
 import battlesnake.packets.DHCPPacket;
 import battlesnake.packets.IP;
 import battlesnake.simpleservers.UDPServer;
+import battlesnake.utils.ConcurrentLongMap;
 import battlesnake.utils.Path;
 
 /* DHCP server */
@@ -20,6 +21,54 @@ public class DHCP extends UDPServer {
 	/* Map of client name <==> address */
 	private Map<String, Integer> clients = new HashMap<String, Integer>();
 
+	/* An address assigned to a client, for the other servers to identify the client by */
+	public static class Lease {
+
+		public final int ip;
+		public final String hwaddress;
+		public final String hostname;
+
+		public Lease(int ip, String hwaddress, String hostname) {
+			this.ip = ip;
+			this.hwaddress = hwaddress;
+			this.hostname = hostname;
+		}
+	}
+
+	/* Leases, keyed by address */
+	private static final ConcurrentLongMap<Lease> Leases = new ConcurrentLongMap<Lease>();
+
+	/* Find the lease of an address, null if it has none */
+	public static Lease FindLease(int ip) {
+		return Leases.get(ip & 0xffffffffL);
+	}
+
+	/*
+	 * The attributes of the client with an address, for rendering
+	 * templates: "ip", "server" (this server's address), and from its
+	 * lease "hostname" and its hardware address as "mac"
+	 * (01:23:45:67:89:ab), "mac_dashes" (01-23-45-67-89-ab) and "mac_hex"
+	 * (0123456789ab), which are empty if the client has no lease
+	 */
+	public static Map<String, String> ClientAttributes(int ip) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		Lease lease = FindLease(ip);
+		String hw = lease == null ? "" : lease.hwaddress;
+		StringBuilder colons = new StringBuilder();
+		for (int i = 0; i + 1 < hw.length(); i += 2) {
+			if (i > 0)
+				colons.append(':');
+			colons.append(hw, i, i + 2);
+		}
+		attributes.put("ip", IP.IntToStr(ip));
+		attributes.put("server", IP.IntToStr(Configuration.network_address));
+		attributes.put("hostname", lease == null || lease.hostname == null ? "" : lease.hostname);
+		attributes.put("mac", colons.toString());
+		attributes.put("mac_dashes", colons.toString().replace(':', '-'));
+		attributes.put("mac_hex", hw);
+		return attributes;
+	}
+
 	/*
 	 * Allocate an address from the pool for client
 	 * identified by id, or
@@ -50,6 +99,14 @@ public class DHCP extends UDPServer {
 
 	/* Append the DHCP options in the reply packet with the boot parameters */
 	private void AppendBootOptions(DHCPPacket pkt, DHCPPacket rep) {
+		/* Clients which can boot over HTTP are given a URL instead */
+		if (Configuration.http_enabled && Configuration.http_boot_file.length() > 0 && IsHTTPClient(pkt)) {
+			rep.AppendOptionNTS(DHCPPacket.OPTION_BOOTFILE_NAME, HTTP.URL(Configuration.http_boot_file));
+			/* UEFI only accepts the offer if it repeats the vendor class */
+			if (IsUEFIHTTPClient(pkt))
+				rep.AppendOption(DHCPPacket.OPTION_CLASS_IDENT, "HTTPClient".getBytes());
+			return;
+		}
 		/*
 		 * If a boot image does not exist, don't bother setting boot
 		 * parameters
@@ -82,6 +139,23 @@ public class DHCP extends UDPServer {
 		}
 	}
 
+	/*
+	 * Does the client boot over HTTP? iPXE identifies itself by its user
+	 * class or its own encapsulated options, UEFI by its vendor class
+	 */
+	private boolean IsHTTPClient(DHCPPacket pkt) {
+		DHCPPacket.Option userclass = pkt.Options(DHCPPacket.OPTION_USER_CLASS);
+		if (userclass != null && userclass.dataNTS().contains("iPXE"))
+			return true;
+		return pkt.Options(DHCPPacket.OPTION_IPXE_ENCAP) != null || IsUEFIHTTPClient(pkt);
+	}
+
+	/* Is the client a UEFI HTTP boot client? */
+	private boolean IsUEFIHTTPClient(DHCPPacket pkt) {
+		DHCPPacket.Option vendorclass = pkt.Options(DHCPPacket.OPTION_CLASS_IDENT);
+		return vendorclass != null && vendorclass.dataNTS().startsWith("HTTPClient");
+	}
+
 	/* Append a client's identity to the reply packet */
 	private void AppendClientIdent(DHCPPacket pkt, DHCPPacket rep) {
 		DHCPPacket.Option clident = pkt.Options(DHCPPacket.OPTION_CLIENT_IDENT);
@@ -105,15 +179,20 @@ public class DHCP extends UDPServer {
 	}
 
 	/* (Re-)assign an IP address to a client */
-	private void AssignIP(int ip, String id) {
+	private void AssignIP(int ip, String id, String hostname) {
 		if (clients.containsKey(id))
 			if (clients.get(id) == ip)
 				;
-			else
+			else {
 				Log.Add(this, Log.TYPE_INFO, "DHCP: Re-assigning " + IP.IntToStr(ip) + " to " + id);
+				Lease old = FindLease(clients.get(id));
+				if (old != null && old.hwaddress.equals(id))
+					Leases.remove(old.ip & 0xffffffffL, old);
+			}
 		else
 			Log.Add(this, Log.TYPE_INFO, "DHCP: Assigning " + IP.IntToStr(ip) + " to " + id);
 		clients.put(id, ip);
+		Leases.put(ip & 0xffffffffL, new Lease(ip, id, hostname));
 	}
 
 	/* The address to use for broadcasts */
@@ -191,7 +270,7 @@ public class DHCP extends UDPServer {
 			return false;
 		}
 		/* Store the IP in the assignment table */
-		AssignIP(tryip, clientHwAddress);
+		AssignIP(tryip, clientHwAddress, clientHostname);
 		/* Create offer (reply packet) */
 		DHCPPacket rep = pkt.MakeResponse(DHCPPacket.DHCP_REPLY);
 		rep.yiaddr = tryip;
@@ -262,7 +341,7 @@ public class DHCP extends UDPServer {
 		/* Success, reply to the request */
 		else {
 			/* Store the address assignment */
-			AssignIP(tryip, clientHwAddress);
+			AssignIP(tryip, clientHwAddress, clientHostname);
 			/* Create acknowledgement */
 			DHCPPacket rep = pkt.MakeResponse(DHCPPacket.DHCP_REPLY);
 			rep.yiaddr = tryip;
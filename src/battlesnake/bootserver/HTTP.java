@@ -0,0 +1,431 @@
+package battlesnake.bootserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import battlesnake.logging.Log;
+import battlesnake.logging.Statistics;
+import battlesnake.packets.IP;
+import battlesnake.simpleservers.TCPServer;
+import battlesnake.storage.Content;
+import battlesnake.storage.MappedFileStore;
+import battlesnake.storage.Root;
+import battlesnake.utils.CaseInsensitiveHashMap;
+
+/*
+ * HTTP/1.1 server for the same files as the TFTP server, for clients (such
+ * as iPXE and UEFI HTTP boot) which can fetch their kernels over HTTP
+ * instead. Only GET and HEAD are supported. Bodies are sent straight from
+ * the file with FileChannel.transferTo, connections are kept alive between
+ * requests, and a single byte range may be requested.
+ */
+public class HTTP extends TCPServer {
+
+	/* Largest request header accepted */
+	private static final int MaxHeaderSize = 8192;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Statistics.Counter Connections = Statistics.Counter("http_connections");
+	private static final Statistics.Counter Requests = Statistics.Counter("http_requests");
+	private static final Statistics.Counter BytesSent = Statistics.Counter("http_bytes_sent");
+
+	/* Value of the Date header, formatted at most once a second */
+	private static final SimpleDateFormat DateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+	private static String date = "";
+	private static long datetime = 0;
+
+	static {
+		DateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	/* The files being served */
+	private final Root root;
+
+	/* Create a server for the files of a root folder or image */
+	public HTTP(Root root) {
+		this.root = root;
+	}
+
+	/* A client's connection, which handles one request at a time */
+	private class HTTPConnection extends TCPServer.Connection {
+
+		private final int remoteIP;
+		/* Received data which has not been handled yet */
+		private final ByteBuffer request = ByteBuffer.allocate(MaxHeaderSize);
+		/* Response being sent: the header, then the body (if any) */
+		private ByteBuffer header = null;
+		private Content body = null;
+		private long position = 0;
+		private long remaining = 0;
+		/* Keep the connection open after the response */
+		private boolean keepalive = false;
+		/* The request is a HEAD, so the response has no body */
+		private boolean head = false;
+		/* Request line, for logging */
+		private String requestline = "";
+
+		public HTTPConnection(int remoteIP) {
+			this.remoteIP = remoteIP;
+		}
+
+		@Override
+		protected void OnReadable() throws IOException {
+			if (getChannel().read(request) < 0) {
+				close();
+				return;
+			}
+			process();
+		}
+
+		@Override
+		protected void OnWritable() throws IOException {
+			if (send(true))
+				process();
+		}
+
+		/* Release the file of a response that was not finished */
+		@Override
+		protected void OnClose() {
+			if (body != null) {
+				body.release();
+				body = null;
+			}
+		}
+
+		/* Handle each complete request received so far, in turn */
+		private void process() throws IOException {
+			while (getChannel().isOpen() && header == null) {
+				int end = HeaderEnd(request);
+				if (end < 0) {
+					if (!request.hasRemaining()) {
+						keepalive = false;
+						head = false;
+						requestline = "(request header too large)";
+						error(431, "Request Header Fields Too Large");
+						send(false);
+					}
+					return;
+				}
+				String text = new String(request.array(), 0, end, ASCII);
+				request.flip();
+				request.position(end + 4);
+				request.compact();
+				respond(text);
+				if (!send(false))
+					return;
+			}
+		}
+
+		/* Parse a request header and prepare the response */
+		private void respond(String text) {
+			Requests.increment();
+			head = false;
+			String[] lines = text.split("\r\n");
+			requestline = lines[0];
+			String[] line = lines[0].split(" ");
+			/* Parse the request line and the header fields */
+			CaseInsensitiveHashMap<String> fields = new CaseInsensitiveHashMap<String>();
+			boolean valid = line.length == 3 && line[2].startsWith("HTTP/1.");
+			for (int i = 1; i < lines.length && valid; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0)
+					valid = false;
+				else
+					fields.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+			}
+			if (!valid) {
+				keepalive = false;
+				error(400, "Bad Request");
+				return;
+			}
+			String method = line[0];
+			head = method.equals("HEAD");
+			String connection = fields.containsKey("connection") ? fields.get("connection").toLowerCase() : "";
+			if (line[2].equals("HTTP/1.0"))
+				keepalive = connection.contains("keep-alive");
+			else
+				keepalive = !connection.contains("close");
+			/* Request bodies are not read, so the connection cannot be reused */
+			if (fields.containsKey("transfer-encoding") || (fields.containsKey("content-length") && !fields.get("content-length").equals("0"))) {
+				keepalive = false;
+				error(400, "Bad Request");
+				return;
+			}
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				error(501, "Not Implemented");
+				return;
+			}
+			String path = DecodePath(line[1]);
+			if (path == null) {
+				error(400, "Bad Request");
+				return;
+			}
+			/* Open the file */
+			Content content;
+			try {
+				content = root.lookup(path, DHCP.ClientAttributes(remoteIP));
+			}
+			catch (IOException e) {
+				Log.Add(HTTP.this, Log.TYPE_ERR, "Cannot open " + path + " for " + IP.IntToStr(remoteIP) + ": " + e.getMessage());
+				error(500, "Internal Server Error");
+				return;
+			}
+			if (content == null) {
+				error(404, "Not Found");
+				return;
+			}
+			/* Find the requested range, if any */
+			long size = content.getSize();
+			long first = 0, last = size - 1;
+			String range = fields.containsKey("if-range") ? null : fields.get("range");
+			int status = 200;
+			if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+				long[] r = ParseRange(range.substring(6).trim(), size);
+				if (r == null) {
+					/* Malformed, ignore it */
+				}
+				else if (r[0] >= size) {
+					content.release();
+					header = encodeHeader(416, "Range Not Satisfiable", "Content-Range: bytes */" + size + "\r\n", 0);
+					log(416, 0);
+					return;
+				}
+				else {
+					first = r[0];
+					last = Math.min(r[1], size - 1);
+					status = 206;
+				}
+			}
+			long length = last - first + 1;
+			String extra = "Accept-Ranges: bytes\r\n";
+			if (status == 206)
+				extra += "Content-Range: bytes " + first + "-" + last + "/" + size + "\r\n";
+			header = encodeHeader(status, status == 206 ? "Partial Content" : "OK", extra, length);
+			log(status, head ? 0 : length);
+			if (head || length == 0) {
+				content.release();
+				return;
+			}
+			body = content;
+			position = first;
+			remaining = length;
+		}
+
+		/* Prepare an error response, with a short text body */
+		private void error(int status, String reason) {
+			byte[] text = head ? new byte[0] : (status + " " + reason + "\r\n").getBytes(ASCII);
+			ByteBuffer b = encodeHeader(status, reason, status == 501 ? "Allow: GET, HEAD\r\n" : "", text.length);
+			header = ByteBuffer.allocate(b.remaining() + text.length);
+			header.put(b);
+			header.put(text);
+			header.flip();
+			log(status, 0);
+		}
+
+		/* Encode a response header */
+		private ByteBuffer encodeHeader(int status, String reason, String extra, long length) {
+			StringBuilder s = new StringBuilder(256);
+			s.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+			s.append("Date: ").append(HTTPDate()).append("\r\n");
+			s.append("Server: Battlesnake\r\n");
+			s.append(status < 400 ? "Content-Type: application/octet-stream\r\n" : "Content-Type: text/plain\r\n");
+			s.append("Content-Length: ").append(length).append("\r\n");
+			s.append(extra);
+			s.append(keepalive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+			s.append("\r\n");
+			return ByteBuffer.wrap(s.toString().getBytes(ASCII));
+		}
+
+		/*
+		 * Send as much of the response as the socket accepts, waiting for
+		 * it to become writable if it does not accept it all. Returns true
+		 * once the response has been sent and the next request can be
+		 * handled.
+		 */
+		private boolean send(boolean writable) throws IOException {
+			SocketChannel channel = getChannel();
+			if (header.hasRemaining()) {
+				BytesSent.add(channel.write(header));
+				if (header.hasRemaining()) {
+					setInterest(false, true);
+					return false;
+				}
+			}
+			while (remaining > 0) {
+				long n = body.transferTo(position, remaining, channel);
+				if (n == 0) {
+					/* The file has been truncated, the response cannot be completed */
+					if (writable) {
+						close();
+						return false;
+					}
+					setInterest(false, true);
+					return false;
+				}
+				writable = false;
+				position += n;
+				remaining -= n;
+				BytesSent.add(n);
+			}
+			header = null;
+			if (body != null) {
+				body.release();
+				body = null;
+			}
+			if (!keepalive) {
+				close();
+				return false;
+			}
+			setInterest(true, false);
+			return true;
+		}
+
+		/* Log a request if the configuration specifies to */
+		private void log(int status, long length) {
+			if (Configuration.http_log_requests)
+				Log.Add(HTTP.this, Log.TYPE_INFO, "HTTP \"" + requestline + "\" from " + IP.IntToStr(remoteIP) + ": " + status + " (" + length + " bytes)");
+		}
+	}
+
+	/* Find the blank line at the end of a request header, returns -1 if it has not arrived yet */
+	private static int HeaderEnd(ByteBuffer buffer) {
+		byte[] b = buffer.array();
+		for (int i = 0; i + 3 < buffer.position(); i++)
+			if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n')
+				return i;
+		return -1;
+	}
+
+	/*
+	 * Get the path from a request target (either a path or an absolute URL),
+	 * dropping the query and decoding %-escapes. Returns null if the target
+	 * is invalid.
+	 */
+	private static String DecodePath(String target) {
+		if (target.startsWith("http://") || target.startsWith("https://")) {
+			int slash = target.indexOf('/', target.indexOf("//") + 2);
+			target = slash < 0 ? "/" : target.substring(slash);
+		}
+		if (!target.startsWith("/"))
+			return null;
+		int end = target.indexOf('?');
+		if (end >= 0)
+			target = target.substring(0, end);
+		ByteArrayOutputStream b = new ByteArrayOutputStream(target.length());
+		for (int i = 0; i < target.length(); i++) {
+			char c = target.charAt(i);
+			if (c != '%')
+				b.write(c);
+			else if (i + 2 < target.length()) {
+				int hi = Character.digit(target.charAt(i + 1), 16);
+				int lo = Character.digit(target.charAt(i + 2), 16);
+				if (hi < 0 || lo < 0)
+					return null;
+				b.write(hi << 4 | lo);
+				i += 2;
+			}
+			else
+				return null;
+		}
+		String path = new String(b.toByteArray(), UTF8);
+		return path.indexOf('\0') < 0 ? path : null;
+	}
+
+	/*
+	 * Parse a byte range ("first-last", "first-" or "-suffix"), returns the
+	 * first and last offsets, or null if the range is malformed
+	 */
+	private static long[] ParseRange(String range, long size) {
+		int dash = range.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			String a = range.substring(0, dash).trim();
+			String b = range.substring(dash + 1).trim();
+			if (a.length() == 0) {
+				long suffix = Long.parseLong(b);
+				if (suffix <= 0)
+					return new long[] { size, size - 1 };
+				return new long[] { Math.max(0, size - suffix), size - 1 };
+			}
+			long first = Long.parseLong(a);
+			if (b.length() == 0)
+				return new long[] { first, Long.MAX_VALUE };
+			long last = Long.parseLong(b);
+			if (first < 0 || last < first)
+				return null;
+			return new long[] { first, last };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/* The current date, in the format of the Date header */
+	private static synchronized String HTTPDate() {
+		long now = System.currentTimeMillis() / 1000;
+		if (now != datetime) {
+			datetime = now;
+			date = DateFormat.format(new Date(now * 1000));
+		}
+		return date;
+	}
+
+	/* Return the address of the server */
+	@Override
+	protected int getInterfaceAddress() {
+		return Configuration.network_address;
+	}
+
+	/* Return the port that the server is listening on */
+	@Override
+	protected int getPort() {
+		return Configuration.http_server_port & 0xffff;
+	}
+
+	@Override
+	protected int getThreads() {
+		return Configuration.http_threads;
+	}
+
+	@Override
+	protected int getIdleTimeout() {
+		return Configuration.http_keepalive_timeout * 1000;
+	}
+
+	@Override
+	protected TCPServer.Connection OnAccept(SocketChannel channel) throws Exception {
+		Connections.increment();
+		return new HTTPConnection(IP.BytesToInt(((InetSocketAddress) channel.getRemoteAddress()).getAddress().getAddress()));
+	}
+
+	/* Release file mappings which are no longer in use, and check for a replaced root image */
+	@Override
+	protected void OnIdle() throws Exception {
+		MappedFileStore.Prune();
+		root.refresh();
+	}
+
+	/*
+	 * URL of a file on this server, for DHCP to hand out as the boot file
+	 * to clients which can boot over HTTP
+	 */
+	public static String URL(String filename) {
+		String host = IP.IntToStr(Configuration.network_address);
+		int port = Configuration.http_server_port & 0xffff;
+		String path = filename.replace('\\', '/');
+		if (!path.startsWith("/"))
+			path = "/" + path;
+		return "http://" + host + (port == 80 ? "" : ":" + port) + path.replace(" ", "%20");
+	}
+
+}
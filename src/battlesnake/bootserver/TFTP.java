@@ -1,26 +1,481 @@
 package battlesnake.bootserver;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import battlesnake.logging.Log;
+import battlesnake.logging.Statistics;
 import battlesnake.packets.IP;
+import battlesnake.packets.TFTPMulticastGroup;
 import battlesnake.packets.TFTPPacket;
 import battlesnake.packets.TFTPSession;
 import battlesnake.simpleservers.UDPServer;
+import battlesnake.storage.ConcatContent;
+import battlesnake.storage.Content;
+import battlesnake.storage.MappedFileStore;
+import battlesnake.storage.MemoryContent;
+import battlesnake.storage.Prefetcher;
+import battlesnake.storage.Root;
+import battlesnake.storage.Upload;
+import battlesnake.utils.ConcurrentLongMap;
 import battlesnake.utils.Path;
+import battlesnake.utils.TimerWheel;
+import battlesnake.utils.TokenBucket;
 
-/* TFTP server */
+/*
+ * TFTP server: requests are received on the server port, and each transfer
+ * then runs on its own port (transfer ID, RFC 1350) with its own thread
+ */
 public class TFTP extends UDPServer {
 
-	/* Log symbolic link traversals (Windows symlink hack only) */
-	private static boolean LogSymlinks = false;
+	/* Seconds to remember that a client needs a smaller block size */
+	private static final int BlockSizeMemory = 600;
+	/* Seconds to keep a queued RRQ which the client has not sent again */
+	private static final int QueueTimeout = 30;
+	/* Bytes a session may send in each turn of the scheduler */
+	private static final int Quantum = 16384;
+	/* Resolution of the timers (milliseconds) */
+	private static final int TimerTick = 10;
+	/* Times to try joining a multicast group for a file before sending it to the client alone */
+	private static final int JoinAttempts = 3;
+	/*
+	 * The ERROR for a file that does not exist, encoded once since clients
+	 * probe for many files that do not exist
+	 */
+	private static final TFTPPacket NotFound = TFTPPacket.ERROR(TFTPPacket.ERROR_FILE_NOT_FOUND, "File not found");
+	private static final ByteBuffer NotFoundEncoded = NotFound.Encode();
+
+	/* Drives the retransmission timers of all sessions */
+	private TimerWheel timers = null;
+	/* Largest block size that fits the interface's MTU */
+	private int maxblocksize = TFTPPacket.BLOCKSIZE_MAX;
+	/* Clients which have had to be offered a smaller block size */
+	private final ConcurrentLongMap<BlockSizeLimit> blocksizelimits = new ConcurrentLongMap<BlockSizeLimit>();
+	private static final Statistics.Counter BlockSizeShrinks = Statistics.Counter("tftp_blocksize_shrinks");
+	/* Rate limits for all transfers and for each client (null for none) */
+	private TokenBucket ratelimit = null;
+	private final ConcurrentLongMap<ClientBucket> clientratelimits = new ConcurrentLongMap<ClientBucket>();
+	private static final Statistics.Counter PacingDeferrals = Statistics.Counter("tftp_pacing_deferrals");
+	private static final Statistics.Counter PacingDeferredMillis = Statistics.Counter("tftp_pacing_deferred_ms");
+	/* Loads the chunks of files read ahead (null for no read-ahead) */
+	private ExecutorService readahead = null;
+	private static final Statistics.Counter ReadAheadChunks = Statistics.Counter("tftp_readahead_chunks");
+	private static final Statistics.Counter ReadAheadWaits = Statistics.Counter("tftp_readahead_waits");
+	/* Congestion windows cut by lost blocks and by timeouts, and bursts held back by them */
+	private static final Statistics.Counter CongestionLosses = Statistics.Counter("tftp_congestion_losses");
+	private static final Statistics.Counter CongestionTimeouts = Statistics.Counter("tftp_congestion_timeouts");
+	private static final Statistics.Counter CongestionWaits = Statistics.Counter("tftp_congestion_waits");
+	/* Sends the DATA of all sessions within the overall rate limit (null for no limit) */
+	private SendScheduler scheduler = null;
+	/* RRQs waiting for transfers to end, for small files and others, keyed by client address and port */
+	private final ArrayDeque<QueuedRequest> smallqueue = new ArrayDeque<QueuedRequest>();
+	private final ArrayDeque<QueuedRequest> largequeue = new ArrayDeque<QueuedRequest>();
+	private final ConcurrentLongMap<QueuedRequest> queued = new ConcurrentLongMap<QueuedRequest>();
+	/* Transfers admitted but still starting, outside the queue's lock (guarded by it) */
+	private int admitting = 0;
+	private static final Statistics.Counter RequestsQueued = Statistics.Counter("tftp_requests_queued");
+	private static final Statistics.Counter RequestsRejected = Statistics.Counter("tftp_requests_rejected");
+	private static final Statistics.Counter RequestsExpired = Statistics.Counter("tftp_requests_expired");
+	/* The files being served */
+	private final Root root;
+	/* Loads the files clients are likely to request next (null for none) */
+	private Prefetcher prefetcher = null;
+	/* Uploads started, bytes received, and blocks dropped because the disk was behind */
+	private static final Statistics.Counter Uploads = Statistics.Counter("tftp_uploads");
+	private static final Statistics.Counter UploadBytes = Statistics.Counter("tftp_upload_bytes");
+	private static final Statistics.Counter UploadStalls = Statistics.Counter("tftp_upload_stalls");
+	/* ACKs ignored because they repeat the last ACK, or are older than it */
+	private static final Statistics.Counter DuplicateAcks = Statistics.Counter("tftp_duplicate_acks");
+	private static final Statistics.Counter StaleAcks = Statistics.Counter("tftp_stale_acks");
+
+	/* Create a server for the files of a root folder or image */
+	public TFTP(Root root) {
+		this.root = root;
+	}
+
+	/* Retransmits a session's unacknowledged OACK or DATA when it expires */
+	private class RetransmitTimer extends TimerWheel.Timer {
+
+		private final TFTPSession ses;
+
+		public RetransmitTimer(TFTPSession ses) {
+			this.ses = ses;
+		}
+
+		@Override
+		protected void expire() throws Exception {
+			synchronized (ses) {
+				/* Ignore if the timer was cancelled meanwhile, the session has ended, or the transfer is complete */
+				if (isCancelled() || !ses.isFileOpen() || ses.getLastAcknowledged() >= ses.getFinalBlock())
+					return;
+				if (!ses.timedOut()) {
+					Log.Add(TFTP.this, Log.TYPE_WARN, "TFTP transfer to " + IP.IntToStr(ses.getRemoteIP()) + " timed out");
+					Send(ses, TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, "Transfer timed out"));
+					endSession(ses);
+				}
+				else if (ses.getOptionAck() != null) {
+					Send(ses, ses.getOptionAck());
+					ses.sent(0, true);
+					timers.schedule(this, ses.getRetransmitTimeout());
+				}
+				else {
+					if (ses.getRetries() == Configuration.tftp_blocksize_shrink_retries)
+						ShrinkBlockSize(ses);
+					if (Configuration.tftp_congestion_control && ses.getWindowSize() > 1 && ses.congestionTimeout())
+						CongestionTimeouts.increment();
+					sendWindow(ses, ses.getLastAcknowledged() + 1, true);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Acknowledges an upload's blocks (or its OACK) again when the client
+	 * has gone quiet, and ends the session once the final block has been
+	 * acknowledged and the client has had time to resend it if the ACK
+	 * was lost
+	 */
+	private class UploadTimer extends TimerWheel.Timer {
+
+		private final TFTPSession ses;
+
+		public UploadTimer(TFTPSession ses) {
+			this.ses = ses;
+		}
+
+		@Override
+		protected void expire() throws Exception {
+			synchronized (ses) {
+				if (isCancelled() || !ses.isUpload())
+					return;
+				if (ses.isUploadComplete())
+					endSession(ses);
+				else if (!ses.timedOut()) {
+					Log.Add(TFTP.this, Log.TYPE_WARN, "TFTP upload from " + IP.IntToStr(ses.getRemoteIP()) + " timed out");
+					Send(ses, TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, "Transfer timed out"));
+					endSession(ses);
+				}
+				else {
+					if (ses.getOptionAck() != null) {
+						Send(ses, ses.getOptionAck());
+						ses.sent(0, true);
+					}
+					else
+						sendAcknowledge(ses, ses.getLastReceived(), true);
+					timers.schedule(this, ses.getRetransmitTimeout());
+				}
+			}
+		}
+	}
+
+	/* Sends the rest of a window once the rate limits and read-ahead allow it */
+	private class PaceTimer extends TimerWheel.Timer {
+
+		private final TFTPSession ses;
+		/* Blocks still to send, cleared when the window is superseded */
+		private boolean pending = false;
+		private long first, last;
+		private boolean retransmit;
+		/* Is the file small, and the bytes the session may still send in its turn of the scheduler */
+		private boolean small = false;
+		private long deficit = 0;
+		/* Is the session in the scheduler's queues, and does it want another turn */
+		private boolean queued = false;
+		private boolean waiting = false;
+
+		public PaceTimer(TFTPSession ses) {
+			this.ses = ses;
+		}
+
+		@Override
+		protected void expire() throws Exception {
+			synchronized (ses) {
+				if (!pending || !ses.isFileOpen())
+					return;
+				pending = false;
+				sendBlocks(ses, first, last, retransmit);
+			}
+		}
+	}
+
+	/*
+	 * Sends the DATA of all sessions within the overall rate limit, by
+	 * deficit round robin: in each turn a session may send another Quantum
+	 * bytes, plus what it did not use of its last turn, so sessions share
+	 * the limit equally in bytes whatever their window and block sizes.
+	 * Sessions of small files take their turns before the others.
+	 */
+	private class SendScheduler extends Thread {
+
+		/* Sessions waiting for a turn, of small files and others */
+		private final ArrayDeque<PaceTimer> small = new ArrayDeque<PaceTimer>();
+		private final ArrayDeque<PaceTimer> large = new ArrayDeque<PaceTimer>();
+		private boolean running = true;
+
+		public SendScheduler() {
+			super("TFTP scheduler");
+			setDaemon(true);
+		}
+
+		/* A session has blocks waiting for a turn */
+		public synchronized void add(PaceTimer pacer) {
+			pacer.waiting = true;
+			if (pacer.queued)
+				return;
+			pacer.queued = true;
+			(pacer.small ? small : large).add(pacer);
+			notify();
+		}
+
+		/* Take the session whose turn it is, returns null once stopped */
+		private synchronized PaceTimer next() {
+			while (running && small.isEmpty() && large.isEmpty())
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
+			if (!running)
+				return null;
+			PaceTimer pacer = small.isEmpty() ? large.poll() : small.poll();
+			pacer.waiting = false;
+			return pacer;
+		}
+
+		/*
+		 * End a session's turn: if it still has blocks waiting, it goes to
+		 * the back of its queue, or stays at the front if the rate limit
+		 * held it back
+		 */
+		private synchronized void done(PaceTimer pacer, boolean held) {
+			if (!pacer.waiting)
+				pacer.queued = false;
+			else if (held)
+				(pacer.small ? small : large).addFirst(pacer);
+			else
+				(pacer.small ? small : large).addLast(pacer);
+		}
+
+		/* Stop the scheduler */
+		public synchronized void shutdown() {
+			running = false;
+			notify();
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			PaceTimer pacer;
+			while ((pacer = next()) != null) {
+				TFTPSession ses = pacer.ses;
+				long held = 0;
+				synchronized (ses) {
+					if (pacer.pending && ses.isFileOpen()) {
+						pacer.pending = false;
+						/* A new turn, unless the last one was cut short by the rate limit */
+						if (pacer.deficit < ses.getBlockSize() + 4)
+							pacer.deficit += Quantum;
+						try {
+							held = sendBlocks(ses, pacer.first, pacer.last, pacer.retransmit);
+						}
+						/* The session has ended */
+						catch (ClosedChannelException e) {
+						}
+						catch (Exception e) {
+							Log.Add(TFTP.this, Log.TYPE_ERR, "TFTP session with " + IP.IntToStr(ses.getRemoteIP()) + " failed: " + e.getMessage());
+							endSession(ses);
+						}
+					}
+				}
+				done(pacer, held > 0);
+				if (held > 0) {
+					PacingDeferrals.increment();
+					PacingDeferredMillis.add((held + 999999) / 1000000);
+					try {
+						Thread.sleep(held / 1000000, (int) (held % 1000000));
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+	}
+
+	/* A RRQ waiting for a transfer to end before it can start */
+	private static class QueuedRequest {
+
+		private final InetSocketAddress sender;
+		private final int remotePort;
+		private final TFTPPacket pkt;
+		/* The file requested, opened to find its size */
+		private final Content content;
+		private final boolean small;
+		/* Time at which the client last sent the request (System.nanoTime) */
+		private volatile long heard = System.nanoTime();
+
+		public QueuedRequest(InetSocketAddress sender, int remotePort, TFTPPacket pkt, Content content) {
+			this.sender = sender;
+			this.remotePort = remotePort;
+			this.pkt = pkt;
+			this.content = content;
+			this.small = content.getSize() <= Configuration.tftp_small_file * 1024L;
+		}
+
+		/* Key of the request, its client's address and port */
+		private long getKey() {
+			return TFTPSession.Manager.Key(IP.BytesToInt(sender.getAddress().getAddress()), remotePort);
+		}
+	}
+
+	/* A block size limit learned for a client */
+	private static class BlockSizeLimit {
+
+		private final long ip;
+		private final int blocksize;
+		/* Time at which the limit is forgotten (System.nanoTime) */
+		private final long expires;
+
+		public BlockSizeLimit(long ip, int blocksize) {
+			this.ip = ip;
+			this.blocksize = blocksize;
+			this.expires = System.nanoTime() + BlockSizeMemory * 1000000000L;
+		}
+	}
+
+	/* A client's rate limit */
+	private static class ClientBucket extends TokenBucket {
+
+		private final long ip;
+
+		public ClientBucket(long ip, long rate, long burst) {
+			super(rate, burst);
+			this.ip = ip;
+		}
+	}
+
+	/* Receives the packets of a session, from the session's own port */
+	private class SessionThread extends Thread {
+
+		private final TFTPSession ses;
+
+		public SessionThread(TFTPSession ses) {
+			super("TFTP " + IP.IntToStr(ses.getRemoteIP()) + ":" + ses.getRemotePort());
+			this.ses = ses;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(65536);
+			/* Each packet is decoded in place, into the same object */
+			TFTPPacket pkt = new TFTPPacket();
+			try {
+				while (true) {
+					buffer.clear();
+					ses.getChannel().read(buffer);
+					buffer.flip();
+					OnSessionReceive(ses, buffer, pkt);
+				}
+			}
+			/* The client has gone away (ICMP port unreachable) */
+			catch (PortUnreachableException e) {
+				onUnreachable(ses);
+			}
+			/* The session has ended */
+			catch (ClosedChannelException e) {
+			}
+			catch (IOException e) {
+				Log.Add(TFTP.this, Log.TYPE_ERR, "TFTP session with " + IP.IntToStr(ses.getRemoteIP()) + " failed: " + e.getMessage());
+				endSession(ses);
+			}
+		}
+	}
+
+	/* Retransmits to the master client of a multicast group when it expires */
+	private class GroupTimer extends TimerWheel.Timer {
+
+		private final TFTPMulticastGroup group;
+
+		public GroupTimer(TFTPMulticastGroup group) {
+			this.group = group;
+		}
+
+		@Override
+		protected void expire() throws Exception {
+			synchronized (group) {
+				TFTPMulticastGroup.Member m = group.getMaster();
+				if (isCancelled() || m == null || !group.isChannelOpen())
+					return;
+				/* The master has gone quiet, hand over to the next member */
+				if (!group.timedOut()) {
+					Log.Add(TFTP.this, Log.TYPE_WARN, "TFTP multicast client " + IP.IntToStr(m.remoteIP) + " timed out");
+					group.removeMember(m);
+					electMaster(group);
+				}
+				else if (group.isMasterPending()) {
+					LogSent(m.remoteIP, m.oack);
+					group.send(m, m.oack);
+					timers.schedule(this, group.getRetransmitTimeout());
+				}
+				else {
+					PaceGroup(group);
+					group.writeData(m.acked + 1);
+					timers.schedule(this, group.getRetransmitTimeout());
+				}
+			}
+		}
+	}
+
+	/* Receives the packets of every member of a multicast group, on the group's port */
+	private class GroupThread extends Thread {
+
+		private final TFTPMulticastGroup group;
+
+		public GroupThread(TFTPMulticastGroup group) {
+			super("TFTP multicast " + group.getOptionValue(false));
+			this.group = group;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(65536);
+			/* Each packet is decoded in place, into the same object */
+			TFTPPacket pkt = new TFTPPacket();
+			try {
+				while (true) {
+					buffer.clear();
+					InetSocketAddress sender = (InetSocketAddress) group.getChannel().receive(buffer);
+					buffer.flip();
+					OnGroupReceive(group, sender, buffer, pkt);
+				}
+			}
+			/* The group has ended */
+			catch (ClosedChannelException e) {
+			}
+			catch (IOException e) {
+				Log.Add(TFTP.this, Log.TYPE_ERR, "TFTP multicast group failed: " + e.getMessage());
+				endGroup(group);
+			}
+		}
+	}
 
 	/* Get the port that the server is bound to */
 	@Override
@@ -34,200 +489,1194 @@ public class TFTP extends UDPServer {
 		return Configuration.network_address;
 	}
 
-	/* Sends a TFTP packet */
+	/* Log a packet that is about to be sent, if configuration specifies to */
+	private void LogSent(int addr, TFTPPacket rep) {
+		if (!Configuration.tftp_log_packets)
+			return;
+		if (rep.op == TFTPPacket.OP_OACK)
+			Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(rep.op) + " sent to " + IP.IntToStr(addr));
+		if (rep.op == TFTPPacket.OP_ERROR)
+			Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(rep.op) + " " + rep.ErrorCode + ":\"" + rep.ErrorMessage + "\" sent to " + IP.IntToStr(addr));
+	}
+
+	/* Sends a TFTP packet from the server port */
 	private void Send(InetSocketAddress Target, int Port, TFTPPacket rep) throws Exception {
-		super.Send(Port, Target.getAddress(), rep.Encode());
+		LogSent(IP.BytesToInt(Target.getAddress().getAddress()), rep);
+		super.Send(Port, Target.getAddress(), rep == NotFound ? NotFoundEncoded : rep.Encode());
+	}
+
+	/*
+	 * Sends a TFTP packet from a session's port, returns false if the
+	 * session has ended
+	 */
+	private boolean Send(TFTPSession ses, TFTPPacket rep) throws IOException {
+		if (!ses.isChannelOpen())
+			return false;
+		LogSent(ses.getRemoteIP(), rep);
+		try {
+			ses.getChannel().write(rep.Encode());
+			return true;
+		}
+		catch (PortUnreachableException e) {
+			onUnreachable(ses);
+			return false;
+		}
+	}
+
+	/* The client of a session has gone away, so end the transfer now */
+	private void onUnreachable(TFTPSession ses) {
+		if (Configuration.tftp_log_packets)
+			Log.Add(this, Log.TYPE_INFO, "TFTP client " + IP.IntToStr(ses.getRemoteIP()) + ":" + ses.getRemotePort() + " is unreachable, ending transfer");
+		endSession(ses);
+	}
+
+	/* End a session, releasing its file, port and thread */
+	private void endSession(TFTPSession ses) {
+		synchronized (ses) {
+			if (ses.getTimer() != null)
+				timers.cancel(ses.getTimer());
+			if (ses.getPacer() != null)
+				timers.cancel(ses.getPacer());
+			ses.closeSession();
+		}
+		TFTPSession.Manager.End(ses);
+		admitQueued();
+	}
+
+	/* End a multicast group, releasing its file, port and thread */
+	private void endGroup(TFTPMulticastGroup group) {
+		synchronized (group) {
+			if (group.getTimer() != null)
+				timers.cancel(group.getTimer());
+			group.close();
+		}
+		TFTPMulticastGroup.Manager.End(group);
+		admitQueued();
+	}
+
+	/*
+	 * Make the longest-standing member of a multicast group its master,
+	 * with an OACK that has an empty address and port, or end the group if
+	 * no members are left
+	 */
+	private void electMaster(TFTPMulticastGroup group) throws Exception {
+		TFTPMulticastGroup.Member m = group.nextMaster();
+		if (m == null) {
+			endGroup(group);
+			return;
+		}
+		m.oack = TFTPPacket.OACK(new String[] { TFTPPacket.OPTION_MULTICAST }, new String[] { ",,1" });
+		group.setMaster(m);
+		LogSent(m.remoteIP, m.oack);
+		group.send(m, m.oack);
+		timers.schedule(group.getTimer(), group.getRetransmitTimeout());
+	}
+
+	/*
+	 * Send a window of DATA blocks starting at the given block, and
+	 * (re-)start the retransmission timer
+	 */
+	private void sendWindow(TFTPSession ses, long first, boolean retransmit) throws Exception {
+		if (!ses.isChannelOpen())
+			return;
+		/* A new window replaces any remainder of the last one */
+		PaceTimer pacer = (PaceTimer) ses.getPacer();
+		pacer.pending = false;
+		timers.cancel(pacer);
+		sendBlocks(ses, first, Math.min(first + ses.getWindowSize() - 1, ses.getFinalBlock()), retransmit);
+	}
+
+	/*
+	 * Send blocks first..last of a window. If the rate limits or the
+	 * congestion window hold a block back, the rest of the window is sent
+	 * by the session's pace timer, and the retransmission timer waits
+	 * until the whole window is sent.
+	 * Likewise a block which has not been read ahead yet is sent once its
+	 * chunk is loaded. Within an overall rate limit, blocks are only sent
+	 * by the scheduler in the session's turn. Returns the nanoseconds for
+	 * which the overall limit holds the next block back, for the scheduler.
+	 */
+	private long sendBlocks(TFTPSession ses, long first, long last, boolean retransmit) throws Exception {
+		PaceTimer pacer = (PaceTimer) ses.getPacer();
+		SendScheduler scheduler = this.scheduler;
+		int bytes = ses.getBlockSize() + 4;
+		long block = first;
+		long wait = 0;
+		long held = 0;
+		boolean loading = false;
+		boolean queued = false;
+		boolean congested = false;
+		/*
+		 * The congestion window allows cwnd blocks per round trip. The
+		 * window is sent in bursts of that many blocks a round trip apart,
+		 * or of proportionally more blocks a timer tick apart if the round
+		 * trip is shorter than that.
+		 */
+		long burst = Long.MAX_VALUE;
+		long interval = 0;
+		if (Configuration.tftp_congestion_control && ses.getRoundTripTime() > 0 && ses.getCongestionWindow() < ses.getWindowSize()) {
+			long rtt = ses.getRoundTripTime() * 1000L;
+			interval = Math.max(rtt, TimerTick * 1000000L);
+			burst = Math.max(1, ses.getCongestionWindow() * interval / rtt);
+		}
+		try {
+			for (; block <= last; block++) {
+				if (loading = !readAhead(ses, block))
+					break;
+				if (congested = block - first >= burst) {
+					wait = interval;
+					break;
+				}
+				if (scheduler != null) {
+					if (queued = Thread.currentThread() != scheduler || pacer.deficit < bytes)
+						break;
+					if (queued = (held = ratelimit.delay(bytes, System.nanoTime())) > 0)
+						break;
+				}
+				if ((wait = Pace(ses.getRemoteIP(), bytes)) > 0)
+					break;
+				ses.writeData(block);
+				pacer.deficit -= bytes;
+			}
+		}
+		catch (PortUnreachableException e) {
+			onUnreachable(ses);
+			return 0;
+		}
+		if (block > first)
+			ses.sent(block - 1, retransmit);
+		if (block <= last) {
+			pacer.pending = true;
+			pacer.first = block;
+			pacer.last = last;
+			pacer.retransmit = retransmit;
+			timers.cancel(ses.getTimer());
+			if (loading) {
+				timers.cancel(pacer);
+				ReadAheadWaits.increment();
+				return 0;
+			}
+			if (queued) {
+				timers.cancel(pacer);
+				scheduler.add(pacer);
+				return held;
+			}
+			long delay = (wait + 999999) / 1000000;
+			timers.schedule(pacer, delay);
+			if (congested)
+				CongestionWaits.increment();
+			else {
+				PacingDeferrals.increment();
+				PacingDeferredMillis.add(delay);
+			}
+		}
+		else {
+			/* A session with nothing left to send loses what is left of its turn */
+			pacer.deficit = 0;
+			timers.schedule(ses.getTimer(), ses.getRetransmitTimeout());
+		}
+		return 0;
+	}
+
+	/*
+	 * Read a session's file ahead of the transfer: once less than half a
+	 * chunk is loaded (or being loaded) beyond the given block, the next
+	 * aligned chunk is loaded by a read-ahead thread, which then sends any
+	 * blocks that were waiting for it. Returns whether the block is loaded,
+	 * so that it can be sent without waiting on the disk.
+	 */
+	private boolean readAhead(final TFTPSession ses, long block) throws IOException {
+		if (readahead == null)
+			return true;
+		long size = ses.getFileSize();
+		long end = Math.min(block * ses.getBlockSize(), size);
+		long chunk = Configuration.tftp_readahead * 1024L;
+		if (!ses.isLoading() && ses.getRequestedTo() < size && ses.getRequestedTo() - end < chunk / 2) {
+			final Content content = ses.getContent();
+			final long from = ses.getRequestedTo();
+			final long to = Math.min((from / chunk + 1) * chunk, size);
+			ses.loading(to);
+			readahead.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						content.load(from, to - from);
+						ReadAheadChunks.increment();
+					}
+					/* The blocks are read as they are sent instead, and fail then */
+					catch (IOException e) {
+					}
+					synchronized (ses) {
+						ses.loaded(to);
+						PaceTimer pacer = (PaceTimer) ses.getPacer();
+						try {
+							if (pacer != null)
+								pacer.expire();
+						}
+						/* The session has ended */
+						catch (ClosedChannelException e) {
+						}
+						catch (Exception e) {
+							Log.Add(TFTP.this, Log.TYPE_ERR, "TFTP session with " + IP.IntToStr(ses.getRemoteIP()) + " failed: " + e.getMessage());
+							endSession(ses);
+						}
+					}
+				}
+			});
+		}
+		return end <= ses.getLoadedTo();
+	}
+
+	/*
+	 * Count a multicast block against the overall rate limit. Multicast
+	 * blocks are not held back, since they are paced by the master's ACKs,
+	 * but they leave less of the limit for other transfers.
+	 */
+	private void PaceGroup(TFTPMulticastGroup group) {
+		if (ratelimit != null)
+			ratelimit.take(group.getBlockSize() + 4, System.nanoTime());
+	}
+
+	/*
+	 * Check the rate limits for sending a packet to a client, returns the
+	 * nanoseconds to wait before sending it or 0 if it can be sent now, in
+	 * which case the bytes are counted against the limits
+	 */
+	private long Pace(int remoteIP, int bytes) {
+		if (ratelimit == null && Configuration.tftp_client_rate_limit <= 0)
+			return 0;
+		long now = System.nanoTime();
+		ClientBucket client = null;
+		if (Configuration.tftp_client_rate_limit > 0) {
+			long ip = remoteIP & 0xffffffffL;
+			client = clientratelimits.get(ip);
+			if (client == null) {
+				client = new ClientBucket(ip, Configuration.tftp_client_rate_limit * 1024L, Configuration.tftp_rate_burst * 1024L);
+				ClientBucket existing = clientratelimits.putIfAbsent(ip, client);
+				if (existing != null)
+					client = existing;
+			}
+		}
+		long wait = Math.max(ratelimit == null ? 0 : ratelimit.delay(bytes, now), client == null ? 0 : client.delay(bytes, now));
+		if (wait > 0)
+			return wait;
+		if (ratelimit != null)
+			ratelimit.take(bytes, now);
+		if (client != null)
+			client.take(bytes, now);
+		return 0;
+	}
+
+	/*
+	 * Handle a RRQ by starting a transfer for it or, while
+	 * tftp_max_transfers are running, queueing it until one ends. Returns
+	 * an error to send from the server port if the file cannot be opened,
+	 * or the transfer cannot start or be queued.
+	 */
+	private TFTPPacket onReadRequest(InetSocketAddress sender, int remotePort, TFTPPacket pkt) {
+		int addr = IP.BytesToInt(sender.getAddress().getAddress());
+		/* The client is still waiting */
+		if (isQueued(addr, remotePort))
+			return null;
+		Content content;
+		try {
+			content = root.lookup(pkt.filename, DHCP.ClientAttributes(addr));
+		}
+		/* I/O error or unknown error */
+		catch (Exception e) {
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+		}
+		/* File not found */
+		if (content == null)
+			return NotFound;
+		return admitRead(sender, remotePort, pkt, content);
+	}
+
+	/*
+	 * Start a transfer for a RRQ of an opened file or, while
+	 * tftp_max_transfers are running, queue it until one ends. Returns an
+	 * error to send from the server port if the transfer cannot start or
+	 * be queued.
+	 */
+	private TFTPPacket admitRead(InetSocketAddress sender, int remotePort, TFTPPacket pkt, Content content) {
+		int addr = IP.BytesToInt(sender.getAddress().getAddress());
+		/* Files in memory need no prefetching, and are often rendered per client */
+		if (prefetcher != null && !(content instanceof MemoryContent))
+			prefetcher.request(addr, pkt.filename);
+		if (Configuration.tftp_max_transfers <= 0)
+			return startRead(sender, remotePort, pkt, content);
+		QueuedRequest q = new QueuedRequest(sender, remotePort, pkt, content);
+		QueuedRequest rejected = null;
+		boolean admitted = false;
+		synchronized (queued) {
+			if (queued.size() == 0 && !isFull()) {
+				admitting++;
+				admitted = true;
+			}
+			/* A request for a small file takes the place of the last one for a large file */
+			else if (queued.size() >= Configuration.tftp_queue_length) {
+				if (q.small && !largequeue.isEmpty()) {
+					rejected = largequeue.pollLast();
+					queued.remove(rejected.getKey(), rejected);
+				}
+				else
+					rejected = q;
+			}
+			if (!admitted && rejected != q) {
+				(q.small ? smallqueue : largequeue).add(q);
+				queued.put(q.getKey(), q);
+				RequestsQueued.increment();
+			}
+		}
+		if (admitted) {
+			TFTPPacket rep = startAdmitted(sender, remotePort, pkt, content);
+			/* The slot was not taken after all */
+			if (rep != null)
+				admitQueued();
+			return rep;
+		}
+		if (rejected != null) {
+			RequestsRejected.increment();
+			rejected.content.release();
+			TFTPPacket busy = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, "Server busy, try again later");
+			if (rejected == q)
+				return busy;
+			try {
+				Send(rejected.sender, rejected.remotePort, busy);
+			}
+			catch (Exception e) {
+			}
+		}
+		admitQueued();
+		return null;
+	}
+
+	/* Is a RRQ from this client queued? If so, note that the client is still waiting */
+	private boolean isQueued(int remoteIP, int remotePort) {
+		if (Configuration.tftp_max_transfers <= 0)
+			return false;
+		QueuedRequest q = queued.get(TFTPSession.Manager.Key(remoteIP, remotePort));
+		if (q == null)
+			return false;
+		q.heard = System.nanoTime();
+		return true;
+	}
+
+	/*
+	 * Start queued RRQs while fewer than tftp_max_transfers are running,
+	 * those for small files first
+	 */
+	private void admitQueued() {
+		if (Configuration.tftp_max_transfers <= 0)
+			return;
+		while (true) {
+			QueuedRequest q;
+			synchronized (queued) {
+				if (queued.size() == 0 || isFull())
+					return;
+				q = smallqueue.isEmpty() ? largequeue.poll() : smallqueue.poll();
+				queued.remove(q.getKey(), q);
+				admitting++;
+			}
+			TFTPPacket rep = startAdmitted(q.sender, q.remotePort, q.pkt, q.content);
+			if (rep != null)
+				try {
+					Send(q.sender, q.remotePort, rep);
+				}
+				catch (Exception e) {
+				}
+		}
+	}
+
+	/*
+	 * Start a transfer admitted under the queue's lock, outside of it so
+	 * that admitting other RRQs does not wait for its socket and file, then
+	 * release its reservation (the session now counts instead)
+	 */
+	private TFTPPacket startAdmitted(InetSocketAddress sender, int remotePort, TFTPPacket pkt, Content content) {
+		try {
+			return startRead(sender, remotePort, pkt, content);
+		}
+		finally {
+			synchronized (queued) {
+				admitting--;
+			}
+		}
+	}
+
+	/* Are tftp_max_transfers running or starting? Called with the queue's lock held */
+	private boolean isFull() {
+		return Transfers() + admitting >= Configuration.tftp_max_transfers;
+	}
+
+	/* Number of transfers running, a multicast group counting as one however many clients it has */
+	private static int Transfers() {
+		return TFTPSession.Manager.Count() + TFTPMulticastGroup.Manager.Count();
+	}
+
+	/* Forget queued RRQs which their clients have stopped sending, or all of them */
+	private void expireQueued(boolean all) {
+		synchronized (queued) {
+			expireQueued(smallqueue, all);
+			expireQueued(largequeue, all);
+		}
+	}
+
+	private void expireQueued(ArrayDeque<QueuedRequest> queue, boolean all) {
+		long now = System.nanoTime();
+		for (Iterator<QueuedRequest> i = queue.iterator(); i.hasNext();) {
+			QueuedRequest q = i.next();
+			if (all || now - q.heard > QueueTimeout * 1000000000L) {
+				i.remove();
+				queued.remove(q.getKey(), q);
+				q.content.release();
+				if (!all)
+					RequestsExpired.increment();
+			}
+		}
 	}
 
-	/* Handle a RRQ */
-	private TFTPPacket onReadRequest(TFTPPacket pkt, TFTPSession ses) throws Exception {
-		/* Get target */
-		String targetPath = Path.ParseDots(Path.Slashify(pkt.filename), false, false);
-		/* Window symlink hack */
-		if (Configuration.tftp_windows_symlink_hack) {
-			String followedPath;
-			while ((followedPath = FollowSymlink(ses.getRootPath(), targetPath)) != null) {
-				if (LogSymlinks)
-					Log.Add(this, Log.TYPE_INFO, "Followed symlink from \"" + targetPath + "\" to \"" + followedPath + "\".");
-				targetPath = followedPath;
+	/*
+	 * Start a transfer for a RRQ of an opened file, on a new port. Returns
+	 * an error to send from the server port if the transfer cannot start.
+	 */
+	private TFTPPacket startRead(InetSocketAddress sender, int remotePort, TFTPPacket pkt, Content content) {
+		TFTPSession ses = TFTPSession.Manager.New(IP.BytesToInt(sender.getAddress().getAddress()), remotePort);
+		try {
+			synchronized (ses) {
+				ses.openFile(content);
+				/* Open the session's port, connected to the client's port */
+				ses.openChannel(new InetSocketAddress(InetAddress.getByAddress(IP.IntToBytes(getInterfaceAddress())), 0), sender);
+				ses.setTimer(new RetransmitTimer(ses));
+				PaceTimer pacer = new PaceTimer(ses);
+				pacer.small = content.getSize() <= Configuration.tftp_small_file * 1024L;
+				ses.setPacer(pacer);
+				/* Start reading the file ahead */
+				readAhead(ses, 1);
+				/* If packet has options, parse and acknowledge those accepted */
+				TFTPPacket oack = pkt.hasOptions() ? onOptions(pkt, ses) : null;
+				if (oack != null && oack.hasOptions()) {
+					ses.setOptionAck(oack);
+					Send(ses, oack);
+					ses.sent(0, false);
+					timers.schedule(ses.getTimer(), ses.getRetransmitTimeout());
+				}
+				/* Otherwise, start reading the file and send data back */
+				else
+					sendWindow(ses, 1, false);
+				new SessionThread(ses).start();
 			}
+			return null;
+		}
+		/* I/O error or unknown error */
+		catch (Exception e) {
+			endSession(ses);
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+		}
+	}
+
+	/*
+	 * Handle a RRQ with the multicast option (RFC 2090) by adding the
+	 * client to the group for the file, starting the group if there is
+	 * none. Falls back to a unicast transfer for a template or virtual
+	 * file, which are made up per client, if no group address is free or
+	 * tftp_max_transfers are running (in which case the transfer may be
+	 * queued), or if the groups for the file keep ending as the client
+	 * joins them.
+	 */
+	private TFTPPacket onMulticastRequest(InetSocketAddress sender, int remotePort, TFTPPacket pkt) {
+		int addr = IP.BytesToInt(sender.getAddress().getAddress());
+		/* The client fell back to unicast and is still waiting */
+		if (isQueued(addr, remotePort))
+			return null;
+		TFTPMulticastGroup group = null;
+		try {
+			/* Groups are per version of a file and block size, an invalid block size option is left out */
+			int blocksize = 0;
+			if (pkt.hasOption(TFTPPacket.OPTION_BLOCKSIZE))
+				blocksize = NegotiateBlockSize(addr, Integer.parseInt(pkt.getOption(TFTPPacket.OPTION_BLOCKSIZE)));
+			boolean blocksizeoption = blocksize > 0;
+			if (!blocksizeoption)
+				blocksize = TFTPSession.DEFAULT_BLOCKSIZE;
+			for (int attempt = 0; attempt < JoinAttempts; attempt++) {
+				/* The version is taken before the file is opened, so a group's file is never older than its key */
+				String version = root.version(pkt.filename);
+				Content content = root.lookup(pkt.filename, DHCP.ClientAttributes(addr));
+				/* File not found */
+				if (content == null)
+					return NotFound;
+				/* A template or virtual file made up for this client is of no use to a group */
+				if (content instanceof MemoryContent || content instanceof ConcatContent)
+					return admitRead(sender, remotePort, pkt, content);
+				group = findGroup(content + "\0" + version + "\0" + blocksize, blocksize, content);
+				/* No group address is free, or no more transfers may start */
+				if (group == null)
+					return admitRead(sender, remotePort, pkt, content);
+				synchronized (group) {
+					/* Unless the group ended while the client was joining it, in which case start a new one */
+					if (group.isChannelOpen()) {
+						joinGroup(group, sender, remotePort, pkt, blocksizeoption);
+						return null;
+					}
+				}
+			}
+			/* The groups keep ending, send the file to the client alone */
+			return onReadRequest(sender, remotePort, pkt);
+		}
+		/* I/O error or unknown error */
+		catch (Exception e) {
+			if (group != null && group.isEmpty())
+				endGroup(group);
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+		}
+	}
+
+	/*
+	 * Find the multicast group with a key, releasing an opened file, or
+	 * start one for the file. Returns null, leaving the file open, if no
+	 * group address is free or tftp_max_transfers are running.
+	 */
+	private TFTPMulticastGroup findGroup(String key, int blocksize, Content content) throws Exception {
+		TFTPMulticastGroup group = TFTPMulticastGroup.Manager.Find(key);
+		if (group != null) {
+			content.release();
+			return group;
+		}
+		/* A new group is one more transfer, which waits its turn behind those queued */
+		synchronized (queued) {
+			if (Configuration.tftp_max_transfers > 0 && (queued.size() > 0 || isFull()))
+				return null;
+			group = TFTPMulticastGroup.Manager.New(key, blocksize);
 		}
-		/* Open the file */
-		ses.openFile(ses.getRootPath() + targetPath, false);
-		/* If packet has options, parse and acknowledge them */
-		if (pkt.hasOptions())
-			return onOptions(pkt, ses);
-		/* Otherwise, start reading the file and send data back */
-		TFTPPacket rep = TFTPPacket.DATA(1, null);
-		ses.readFile(rep);
-		return rep;
+		if (group == null)
+			return null;
+		synchronized (group) {
+			group.openFile(content);
+			group.openChannel(new InetSocketAddress(InetAddress.getByAddress(IP.IntToBytes(getInterfaceAddress())), 0));
+			group.setTimer(new GroupTimer(group));
+			new GroupThread(group).start();
+		}
+		return group;
+	}
+
+	/*
+	 * Add a client to a multicast group, as master if it has none, and
+	 * acknowledge its options
+	 */
+	private void joinGroup(TFTPMulticastGroup group, InetSocketAddress sender, int remotePort, TFTPPacket pkt, boolean blocksizeoption) throws Exception {
+		TFTPMulticastGroup.Member m = new TFTPMulticastGroup.Member(IP.BytesToInt(sender.getAddress().getAddress()), remotePort);
+		boolean master = group.getMaster() == null;
+		List<String> k = new ArrayList<String>();
+		List<String> v = new ArrayList<String>();
+		k.add(TFTPPacket.OPTION_MULTICAST);
+		v.add(group.getOptionValue(master));
+		if (blocksizeoption) {
+			k.add(TFTPPacket.OPTION_BLOCKSIZE);
+			v.add(((Integer) group.getBlockSize()).toString());
+		}
+		if (pkt.hasOption(TFTPPacket.OPTION_FILESIZE)) {
+			k.add(TFTPPacket.OPTION_FILESIZE);
+			v.add(((Long) group.getFileSize()).toString());
+		}
+		m.oack = TFTPPacket.OACK(k.toArray(new String[] {}), v.toArray(new String[] {}));
+		group.addMember(m);
+		if (master)
+			group.setMaster(m);
+		LogSent(m.remoteIP, m.oack);
+		group.send(m, m.oack);
+		if (master)
+			timers.schedule(group.getTimer(), group.getRetransmitTimeout());
 	}
 
 	/* Handle options */
 	private TFTPPacket onOptions(TFTPPacket pkt, TFTPSession ses) throws Exception {
 		List<String> k = new ArrayList<String>();
 		List<String> v = new ArrayList<String>();
-		if (pkt.hasOption(TFTPPacket.OPTION_BLOCKSIZE)) {
-			ses.setBlockSize(Integer.parseInt(pkt.getOption(TFTPPacket.OPTION_BLOCKSIZE)));
+		/* Block size (RFC 2348), left out if invalid */
+		int blocksize = pkt.hasOption(TFTPPacket.OPTION_BLOCKSIZE) ? NegotiateBlockSize(ses.getRemoteIP(), Integer.parseInt(pkt.getOption(TFTPPacket.OPTION_BLOCKSIZE))) : 0;
+		if (blocksize > 0) {
+			ses.setBlockSize(blocksize);
 			k.add(TFTPPacket.OPTION_BLOCKSIZE);
 			v.add(((Integer) ses.getBlockSize()).toString());
 		}
+		/* Transfer size (RFC 2349), the size of an upload is given by the client */
 		if (pkt.hasOption(TFTPPacket.OPTION_FILESIZE)) {
 			k.add(TFTPPacket.OPTION_FILESIZE);
-			v.add(((Long) ses.getFileSize()).toString());
+			v.add(ses.isUpload() ? pkt.getOption(TFTPPacket.OPTION_FILESIZE) : ((Long) ses.getFileSize()).toString());
+		}
+		/* Timeout (RFC 2349), limits the retransmission timeout */
+		if (pkt.hasOption(TFTPPacket.OPTION_TIMEOUT)) {
+			int timeout = Integer.parseInt(pkt.getOption(TFTPPacket.OPTION_TIMEOUT));
+			if (timeout >= 1 && timeout <= 255) {
+				ses.setTimeoutOption(timeout);
+				k.add(TFTPPacket.OPTION_TIMEOUT);
+				v.add(((Integer) timeout).toString());
+			}
+		}
+		/* Window size (RFC 7440), limited by the configured maximum */
+		if (pkt.hasOption(TFTPPacket.OPTION_WINDOWSIZE) && Configuration.tftp_max_windowsize > 1) {
+			int windowsize = Integer.parseInt(pkt.getOption(TFTPPacket.OPTION_WINDOWSIZE));
+			if (windowsize >= 1) {
+				ses.setWindowSize(Math.min(windowsize, Configuration.tftp_max_windowsize));
+				k.add(TFTPPacket.OPTION_WINDOWSIZE);
+				v.add(((Integer) ses.getWindowSize()).toString());
+			}
 		}
 		return TFTPPacket.OACK(k.toArray(new String[] {}), v.toArray(new String[] {}));
 	}
 
-	/* Handle a WRQ */
-	private TFTPPacket onWriteRequest(TFTPPacket pkt, TFTPSession ses) throws Exception {
-		return TFTPPacket.ERROR(TFTPPacket.ERROR_ACCESS_VIOLATION, "Writing is not implemented on this server");
+	/*
+	 * Limit a requested block size to the range allowed by RFC 2348, to
+	 * the interface's MTU, and to any smaller size learned for the client.
+	 * Returns 0 if the requested size is below the range, since the server
+	 * may only answer with a size up to the one requested: the option is
+	 * then invalid and left out of the OACK.
+	 */
+	private int NegotiateBlockSize(int remoteIP, int requested) {
+		if (requested < TFTPPacket.BLOCKSIZE_MIN)
+			return 0;
+		int blocksize = Math.min(requested, maxblocksize);
+		BlockSizeLimit limit = blocksizelimits.get(remoteIP & 0xffffffffL);
+		if (limit != null && limit.expires - System.nanoTime() > 0)
+			blocksize = Math.min(blocksize, limit.blocksize);
+		return blocksize;
 	}
 
-	/* Handle data */
-	private TFTPPacket onData(TFTPPacket pkt, TFTPSession ses) throws Exception {
-		return TFTPPacket.ERROR(TFTPPacket.ERROR_ACCESS_VIOLATION, "Writing is not implemented on this server");
+	/*
+	 * A transfer has needed several retransmissions in a row, which with
+	 * large blocks is often the loss of IP fragments on the way to the
+	 * client. The block size cannot change during a transfer, so offer the
+	 * client half of it in later transfers.
+	 */
+	private void ShrinkBlockSize(TFTPSession ses) {
+		if (ses.getBlockSize() <= TFTPSession.DEFAULT_BLOCKSIZE)
+			return;
+		long ip = ses.getRemoteIP() & 0xffffffffL;
+		int blocksize = Math.max(TFTPSession.DEFAULT_BLOCKSIZE, ses.getBlockSize() / 2);
+		BlockSizeLimit limit = blocksizelimits.get(ip);
+		if (limit != null && limit.blocksize <= blocksize)
+			return;
+		blocksizelimits.put(ip, new BlockSizeLimit(ip, blocksize));
+		BlockSizeShrinks.increment();
+		Log.Add(this, Log.TYPE_WARN, "TFTP client " + IP.IntToStr(ses.getRemoteIP()) + " is losing blocks of " + ses.getBlockSize() + " bytes, offering it " + blocksize + " bytes from now on");
 	}
 
-	/* Handle a data acknowledge */
-	private TFTPPacket onAcknowledge(TFTPPacket pkt, TFTPSession ses) throws Exception {
-		TFTPPacket rep = TFTPPacket.DATA(pkt.block_id + 1, null);
-		ses.readFile(rep);
-		return rep;
+	/*
+	 * Find the largest block size for which DATA packets fit the MTU of
+	 * the network interface, only using jumbo frames if configured to
+	 */
+	private static int MaxBlockSize() {
+		if (!Configuration.tftp_blocksize_mtu)
+			return TFTPPacket.BLOCKSIZE_MAX;
+		int mtu = -1;
+		try {
+			NetworkInterface intf = NetworkInterface.getByName(Configuration.network_interface);
+			if (intf != null)
+				mtu = intf.getMTU();
+		}
+		catch (SocketException e) {
+		}
+		if (mtu <= TFTPPacket.DATA_OVERHEAD)
+			return TFTPPacket.BLOCKSIZE_ETHERNET;
+		if (!Configuration.tftp_blocksize_jumbo)
+			mtu = Math.min(mtu, 1500);
+		return Math.min(mtu - TFTPPacket.DATA_OVERHEAD, TFTPPacket.BLOCKSIZE_MAX);
 	}
 
-	/* Follow a symbolic link (Windows symlink hack) */
 	/*
-	 * Note: do not call if the path is already valid, it will fail rather
-	 * than passing through
+	 * Handle a WRQ by starting a session that receives the file into the
+	 * client's upload folder, on a new port. Returns an error to send from
+	 * the server port if the session cannot start.
 	 */
-	private String FollowSymlink(String root, String rel) throws Exception {
-		/* Get relative path */
-		rel = Path.ParseDots(Path.Slashify(rel), false, false);
-		/* Split relative path into individual elements */
-		String[] rea = Path.SplitPath(rel);
-		String pre = "", post = "";
-		/*
-		 * Rebuild path (TODO: implement following of double-symlinked
-		 * directories)
-		 */
-		for (int i = 0; i < rea.length; i++) {
-			if (i > 0)
-				pre += File.separator;
-			pre += rea[i];
-			/*
-			 * If current part of path is a file, store the
-			 * remainder of the path and attempt to parse the file
-			 * as a symlink
-			 */
-			if (new File(root + pre).exists() && new File(root + pre).isFile()) {
-				for (int j = i + 1; j < rea.length; j++)
-					post += File.separator + rea[j];
-				break;
+	private TFTPPacket onWriteRequest(InetSocketAddress sender, int remotePort, TFTPPacket pkt) {
+		if (!Configuration.tftp_upload_enabled)
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_ACCESS_VIOLATION, "Uploads are not enabled on this server");
+		int addr = IP.BytesToInt(sender.getAddress().getAddress());
+		TFTPSession ses = TFTPSession.Manager.New(addr, remotePort);
+		try {
+			synchronized (ses) {
+				/* Create the file, preallocated to the size given by the client (if any) */
+				long expected = 0;
+				if (pkt.hasOption(TFTPPacket.OPTION_FILESIZE))
+					expected = Math.max(0, Long.parseLong(pkt.getOption(TFTPPacket.OPTION_FILESIZE)));
+				ses.openUpload(Upload.Create(UploadFolder(addr), pkt.filename, expected, Configuration.tftp_upload_quota * 1048576L));
+				Uploads.increment();
+				/* Open the session's port, connected to the client's port */
+				ses.openChannel(new InetSocketAddress(InetAddress.getByAddress(IP.IntToBytes(getInterfaceAddress())), 0), sender);
+				ses.setTimer(new UploadTimer(ses));
+				/* Acknowledge the options accepted, or the request as block 0 */
+				TFTPPacket oack = pkt.hasOptions() ? onOptions(pkt, ses) : null;
+				if (oack != null && oack.hasOptions()) {
+					ses.setOptionAck(oack);
+					Send(ses, oack);
+					ses.sent(0, false);
+				}
+				else
+					sendAcknowledge(ses, 0, false);
+				timers.schedule(ses.getTimer(), ses.getRetransmitTimeout());
+				new SessionThread(ses).start();
 			}
+			return null;
+		}
+		/* Over quota */
+		catch (Upload.QuotaExceededException e) {
+			endSession(ses);
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_DISK_FULL, e.getMessage());
 		}
-		/* Sanity check */
-		if (!new File(root + pre).exists() || !new File(root + pre).isFile())
+		/* I/O error or unknown error */
+		catch (Exception e) {
+			endSession(ses);
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+		}
+	}
+
+	/* The folder that a client's uploads are received into */
+	private static String UploadFolder(int addr) {
+		return Path.IncludeTrailingSlash(Path.Slashify(Configuration.tftp_upload_folder)) + IP.IntToStr(addr);
+	}
+
+	/*
+	 * Handle a block of an upload. Blocks are taken in order, and are
+	 * acknowledged at the end of each window (RFC 7440) and at the final
+	 * (short) block. A block after a gap is answered once with an ACK of
+	 * the last block received in order, so the client sends the window
+	 * again from there. Duplicates are ignored, except for the last block
+	 * acknowledged, which is acknowledged again since the client cannot
+	 * have seen the ACK. If the disk is behind, a block is dropped without
+	 * an ACK and the client sends it again. A client can only send blocks
+	 * up to a window past the last ACK, which gives the full number of a
+	 * rolled-over block number.
+	 */
+	private TFTPPacket onData(TFTPPacket pkt, TFTPSession ses) throws Exception {
+		if (!ses.isUpload())
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_ILLEGAL_OPERATION);
+		long last = ses.getLastReceived();
+		long block = TFTPPacket.BlockAtOrBefore(pkt.block_id, ses.getLastReceivedAcknowledged() + ses.getWindowSize());
+		if (block != last + 1 || ses.isUploadComplete()) {
+			if (block == ses.getLastReceivedAcknowledged() || (block > last + 1 && ses.acknowledgedGap()))
+				sendAcknowledge(ses, last, last == ses.getLastReceivedAcknowledged());
 			return null;
-		/* Open the file */
-		RandomAccessFile f = new RandomAccessFile(root + pre, "r");
+		}
+		int size = pkt.data.remaining();
+		boolean end = size < ses.getBlockSize();
 		try {
-			/* File size check */
-			if (f.length() >= 200 || f.length() == 0)
+			if (!ses.getUpload().write(pkt.data)) {
+				UploadStalls.increment();
 				return null;
-			/*
-			 * Read file a byte at a time, verifying chars are in
-			 * range 0x20..0x7F
-			 */
-			byte[] t = new byte[200];
-			int p = 0;
-			int i;
-			while ((i = f.read()) != -1) {
-				if (i < 32 || i > 127)
-					return null;
-				t[p] = (byte) i;
-				p++;
-			}
-			/* Clean the path and test it */
-			String s = Path.Slashify(new String(t).substring(0, p));
-			String base = new File(pre).getParent();
-			if (base == null)
-				base = "";
-			base = Path.ParseDots(Path.IncludeTrailingSlash(base) + s, false, false);
-			/* If path is a valid file, return it */
-			String full = base + post;
-			if (s.length() > 0 && new File(root + full).isFile())
-				return full;
-			/* Otherwise fail */
+			}
+		}
+		catch (Upload.QuotaExceededException e) {
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_DISK_FULL, e.getMessage());
+		}
+		UploadBytes.add(size);
+		ses.received(block);
+		ses.setOptionAck(null);
+		/* Transfer complete, linger in case the final ACK is lost */
+		if (end) {
+			ses.getUpload().finish();
+			ses.uploadComplete();
+			sendAcknowledge(ses, block, false);
+			timers.schedule(ses.getTimer(), Configuration.tftp_retransmit_timeout_max);
+			if (Configuration.tftp_log_packets)
+				Log.Add(this, Log.TYPE_INFO, "TFTP upload of " + ses.getFilename() + " (" + ses.getUpload().getSize() + " bytes) received from " + IP.IntToStr(ses.getRemoteIP()));
+			return null;
+		}
+		if (block - ses.getLastReceivedAcknowledged() >= ses.getWindowSize())
+			sendAcknowledge(ses, block, false);
+		timers.schedule(ses.getTimer(), ses.getRetransmitTimeout());
+		return null;
+	}
+
+	/*
+	 * Acknowledge the blocks of an upload up to and including the given
+	 * block, retransmit if the ACK repeats one already sent
+	 */
+	private void sendAcknowledge(TFTPSession ses, long block, boolean retransmit) throws IOException {
+		ses.acknowledgedReceived(block, retransmit);
+		if (!ses.isChannelOpen())
+			return;
+		try {
+			ses.writeAck(block);
+		}
+		catch (PortUnreachableException e) {
+			onUnreachable(ses);
+		}
+	}
+
+	/*
+	 * Handle a data acknowledge by sending the next window of blocks. The
+	 * window always starts after the acknowledged block, so an ACK from
+	 * part-way through the previous window (i.e. a block was lost) rewinds
+	 * the transfer to the first missing block. A client can only
+	 * acknowledge a block that has been sent, which gives the full number
+	 * of a rolled-over block number.
+	 *
+	 * Only an ACK of a block after the last one acknowledged moves the
+	 * transfer on. Answering a duplicate ACK (e.g. a delayed one, or one
+	 * the client repeated on a timeout) would send every later window
+	 * twice (the Sorcerer's Apprentice problem), so duplicate and older
+	 * ACKs are ignored and a lost window is left to the retransmission
+	 * timer.
+	 */
+	private TFTPPacket onAcknowledge(TFTPPacket pkt, TFTPSession ses) throws Exception {
+		if (!ses.isFileOpen())
+			return TFTPPacket.ERROR(TFTPPacket.ERROR_ILLEGAL_OPERATION);
+		long block = TFTPPacket.BlockAtOrBefore(pkt.block_id, ses.getLastSent());
+		/* The ACK of an OACK is block 0, which is never a duplicate until it has been acknowledged */
+		if (block < ses.getLastAcknowledged()) {
+			StaleAcks.increment();
+			return null;
+		}
+		if (block == ses.getLastAcknowledged() && !(block == 0 && ses.getOptionAck() != null)) {
+			DuplicateAcks.increment();
+			return null;
+		}
+		/*
+		 * Grow the congestion window when every block sent has been
+		 * acknowledged, cut it when the client acknowledges a block before
+		 * the last one sent since the next block has been lost (RFC 7440)
+		 */
+		if (Configuration.tftp_congestion_control && ses.getWindowSize() > 1) {
+			if (block == ses.getLastSent())
+				ses.congestionAck(block - ses.getLastAcknowledged());
+			else if (ses.congestionLoss(block))
+				CongestionLosses.increment();
+		}
+		ses.acknowledged(block);
+		if (block == 0)
+			ses.setOptionAck(null);
+		/* Transfer complete */
+		if (block >= ses.getFinalBlock()) {
+			endSession(ses);
 			return null;
 		}
-		/* Close the file */
+		sendWindow(ses, block + 1, block < ses.getLastSent());
+		return null;
+	}
+
+	/*
+	 * Handle an acknowledge from a member of a multicast group. Every
+	 * member's progress is tracked, but only the master's ACKs are
+	 * answered, with the block after the acknowledged one. A member's
+	 * acknowledgements never go backwards and never pass the last block
+	 * sent, which gives the full number of a rolled-over block number, so
+	 * an older ACK is ignored. As for unicast, a duplicate ACK from the
+	 * master is left to the retransmission timer, unless it acknowledges
+	 * the OACK that made it master.
+	 */
+	private void onGroupAcknowledge(TFTPPacket pkt, TFTPMulticastGroup group, TFTPMulticastGroup.Member m) throws Exception {
+		long block = TFTPPacket.BlockAtOrAfter(pkt.block_id, m.acked);
+		if (block > group.getLastSent()) {
+			StaleAcks.increment();
+			return;
+		}
+		boolean duplicate = block == m.acked;
+		m.acked = block;
+		if (m != group.getMaster())
+			return;
+		if (duplicate && !group.isMasterPending()) {
+			DuplicateAcks.increment();
+			return;
+		}
+		group.acknowledged();
+		/* The master has the whole file, hand over to the next member */
+		if (block >= group.getFinalBlock()) {
+			group.removeMember(m);
+			electMaster(group);
+			return;
+		}
+		PaceGroup(group);
+		group.writeData(block + 1);
+		timers.schedule(group.getTimer(), group.getRetransmitTimeout());
+	}
+
+	/*
+	 * Load the boot file and the files matching tftp_warmup_files into
+	 * memory, in parallel, logging how long each one took
+	 */
+	private void WarmUp() throws Exception {
+		final List<String> files = new ArrayList<String>();
+		if (Configuration.boot_file.length() > 0 && root.exists(Configuration.boot_file))
+			files.add(Path.Slashify(Configuration.boot_file));
+		/* Find the files matching the patterns */
+		List<PathMatcher> patterns = new ArrayList<PathMatcher>();
+		for (String pattern : Configuration.tftp_warmup_files.trim().split("\\s+"))
+			if (pattern.length() > 0)
+				patterns.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+		if (!patterns.isEmpty())
+			for (String name : root.list())
+				for (PathMatcher pattern : patterns)
+					if (pattern.matches(Paths.get(name)) && !files.contains(name)) {
+						files.add(name);
+						break;
+					}
+		if (files.isEmpty())
+			return;
+		/* Load them */
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final String file : files)
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					long t = System.nanoTime();
+					try {
+						Content content = root.open(file);
+						try {
+							content.load();
+							Log.Add(TFTP.this, Log.TYPE_INFO, String.format("Warmed up %s (%d bytes) in %.1f ms", file, content.getSize(), (System.nanoTime() - t) / 1e6));
+						}
+						finally {
+							content.release();
+						}
+					}
+					catch (Exception e) {
+						Log.Add(TFTP.this, Log.TYPE_WARN, "Cannot warm up " + file + ": " + e.getMessage());
+					}
+					return null;
+				}
+			});
+		try {
+			pool.invokeAll(tasks);
+		}
 		finally {
-			f.close();
+			pool.shutdown();
 		}
+		Log.Add(this, Log.TYPE_INFO, String.format("Warmed up %d files in %.1f ms", files.size(), (System.nanoTime() - start) / 1e6));
 	}
 
-	/* Handles received packets */
+	/* Start the retransmission and session expiry timers */
+	@Override
+	protected void PreRun() throws Exception {
+		super.PreRun();
+		timers = new TimerWheel("TFTP timers", TimerTick, 1024);
+		maxblocksize = MaxBlockSize();
+		if (Configuration.tftp_rate_limit > 0)
+			ratelimit = new TokenBucket(Configuration.tftp_rate_limit * 1024L, Configuration.tftp_rate_burst * 1024L);
+		if (Configuration.tftp_warmup)
+			WarmUp();
+		if (Configuration.tftp_prefetch)
+			prefetcher = new Prefetcher(root);
+		if (ratelimit != null) {
+			scheduler = new SendScheduler();
+			scheduler.start();
+		}
+		if (Configuration.tftp_readahead > 0)
+			readahead = Executors.newFixedThreadPool(Math.max(1, Configuration.tftp_readahead_threads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TFTP read-ahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		/* Expired sessions end like any other, releasing their timers and making way for queued RRQs */
+		TFTPSession.Manager.Start(new TFTPSession.Manager.ExpiryListener() {
+			@Override
+			public void OnExpired(TFTPSession ses) {
+				endSession(ses);
+			}
+		});
+	}
+
+	/*
+	 * Dumps the transfers in progress to STDOUT, with the congestion
+	 * window and round-trip time of each
+	 */
+	public void ShowSessions() {
+		System.out.print("TFTP sessions\n");
+		for (TFTPSession ses : TFTPSession.Manager.All())
+			synchronized (ses) {
+				if (!ses.isFileOpen())
+					continue;
+				try {
+					System.out.print(IP.IntToStr(ses.getRemoteIP()) + ":" + ses.getRemotePort() + " " + ses.getFilename() + " block " + ses.getLastAcknowledged() + "/" + ses.getFinalBlock() + " window " + ses.getWindowSize() + " cwnd " + ses.getCongestionWindow() + " rtt " + ses.getRoundTripTime() + "us rto " + ses.getRetransmitTimeout() + "ms\n");
+				}
+				catch (IOException e) {
+				}
+			}
+	}
+
+	/* End all sessions and stop the timers */
+	@Override
+	protected void PostRun() throws Exception {
+		expireQueued(true);
+		for (TFTPSession ses : TFTPSession.Manager.All())
+			endSession(ses);
+		for (TFTPMulticastGroup group : TFTPMulticastGroup.Manager.All())
+			endGroup(group);
+		TFTPSession.Manager.Stop();
+		if (timers != null) {
+			timers.stop();
+			timers = null;
+		}
+		if (readahead != null) {
+			readahead.shutdownNow();
+			readahead = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+		if (prefetcher != null) {
+			prefetcher.stop();
+			prefetcher = null;
+		}
+		super.PostRun();
+	}
+
+	/*
+	 * Release file mappings which are no longer in use, check for a
+	 * replaced root image, forget idle clients' rate limits, expired
+	 * block size limits and finished boots, and start queued RRQs for
+	 * transfers which expired
+	 */
+	@Override
+	protected void OnIdle() throws Exception {
+		MappedFileStore.Prune();
+		long now = System.nanoTime();
+		root.refresh();
+		for (ClientBucket client : clientratelimits.values())
+			if (client.isFull(now))
+				clientratelimits.remove(client.ip, client);
+		for (BlockSizeLimit limit : blocksizelimits.values())
+			if (limit.expires - now <= 0)
+				blocksizelimits.remove(limit.ip, limit);
+		if (prefetcher != null)
+			prefetcher.prune();
+		expireQueued(false);
+		admitQueued();
+	}
+
+	/* Handles packets received on the server port, which only starts transfers */
 	@Override
 	protected boolean OnReceive(InetSocketAddress sender, int remotePort, ByteBuffer data) throws Exception {
 		/* Get client ip address */
 		int addr = IP.BytesToInt(sender.getAddress().getAddress());
-		/* Get session */
-		TFTPSession ses = TFTPSession.Manager.FindOrStart(addr, remotePort);
 		/* Parse packet */
 		TFTPPacket pkt = new TFTPPacket(data);
 		/* Log received packet if configuration specifies to */
 		if (pkt.op != TFTPPacket.OP_DATA && pkt.op != TFTPPacket.OP_ACK && Configuration.tftp_log_packets)
 			Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(pkt.op) + " received from " + IP.IntToStr(addr));
 		/* Generate a reply */
-		ses.heartbeat();
 		TFTPPacket rep = null;
 		try {
 			switch (pkt.op) {
 			case TFTPPacket.OP_RRQ:
-				rep = onReadRequest(pkt, ses);
+				/* Ignore a retransmitted request for a transfer that has already started */
+				if (TFTPSession.Manager.Find(addr, remotePort) != null || TFTPMulticastGroup.Manager.FindMember(addr, remotePort) != null)
+					break;
+				if (Configuration.tftp_multicast_enabled && pkt.hasOption(TFTPPacket.OPTION_MULTICAST))
+					rep = onMulticastRequest(sender, remotePort, pkt);
+				else
+					rep = onReadRequest(sender, remotePort, pkt);
 				break;
-
 			case TFTPPacket.OP_WRQ:
-				rep = onWriteRequest(pkt, ses);
-				break;
-			case TFTPPacket.OP_OACK:
-				rep = TFTPPacket.ACK(0);
-				break;
-			case TFTPPacket.OP_DATA:
-				rep = onData(pkt, ses);
-				break;
-			case TFTPPacket.OP_ACK:
-				if (!ses.endOfFile())
-					rep = onAcknowledge(pkt, ses);
+				/* Ignore a retransmitted request for a transfer that has already started */
+				if (TFTPSession.Manager.Find(addr, remotePort) != null)
+					break;
+				rep = onWriteRequest(sender, remotePort, pkt);
 				break;
 			case TFTPPacket.OP_ERROR:
+				break;
+			/* Anything else belongs on a transfer's own port */
 			default:
-				rep = null;
+				rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNKNOWN_TID);
 			}
 		}
-		/* File not found */
-		catch (FileNotFoundException e) {
-			rep = TFTPPacket.ERROR(TFTPPacket.ERROR_FILE_NOT_FOUND, e.getMessage());
-		}
-		/* I/O error */
-		catch (IOException e) {
-			rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
-		}
 		/* Unknown error */
 		catch (Exception e) {
 			rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
 		}
-		/* Log and send reply */
-		if (rep != null) {
-			/* Log reply packet */
-			if (rep.op == TFTPPacket.OP_RRQ || rep.op == TFTPPacket.OP_WRQ || rep.op == TFTPPacket.OP_OACK && Configuration.tftp_log_packets)
-				Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(rep.op) + " sent to " + IP.IntToStr(addr));
-			if (rep.op == TFTPPacket.OP_ERROR && Configuration.tftp_log_packets)
-				Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(rep.op) + " " + rep.ErrorCode + ":\"" + rep.ErrorMessage + "\" sent to " + IP.IntToStr(addr));
-			/* Send packet */
+		/* Send reply */
+		if (rep != null)
 			Send(sender, remotePort, rep);
-		}
 		return true;
 	}
+
+	/* Handles packets received on a session's port, decoding them into pkt */
+	private void OnSessionReceive(TFTPSession ses, ByteBuffer data, TFTPPacket pkt) throws IOException {
+		TFTPPacket rep = null;
+		synchronized (ses) {
+			try {
+				/* Parse packet */
+				pkt.Decode(data);
+				/* Log received packet if configuration specifies to */
+				if (pkt.op != TFTPPacket.OP_DATA && pkt.op != TFTPPacket.OP_ACK && Configuration.tftp_log_packets)
+					Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(pkt.op) + " received from " + IP.IntToStr(ses.getRemoteIP()));
+				/* Generate a reply */
+				ses.heartbeat();
+				switch (pkt.op) {
+				case TFTPPacket.OP_DATA:
+					rep = onData(pkt, ses);
+					break;
+				case TFTPPacket.OP_ACK:
+					rep = onAcknowledge(pkt, ses);
+					break;
+				case TFTPPacket.OP_ERROR:
+					/* The client has abandoned the transfer */
+					endSession(ses);
+					break;
+				default:
+					rep = TFTPPacket.ERROR(TFTPPacket.ERROR_ILLEGAL_OPERATION);
+				}
+			}
+			/* I/O error */
+			catch (IOException e) {
+				rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+			}
+			/* Unknown error */
+			catch (Exception e) {
+				rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+			}
+			/* Send reply, an error ends the transfer */
+			if (rep != null) {
+				Send(ses, rep);
+				if (rep.op == TFTPPacket.OP_ERROR)
+					endSession(ses);
+			}
+		}
+	}
+
+	/* Handles packets received on a multicast group's port, decoding them into pkt */
+	private void OnGroupReceive(TFTPMulticastGroup group, InetSocketAddress sender, ByteBuffer data, TFTPPacket pkt) throws IOException {
+		int addr = IP.BytesToInt(sender.getAddress().getAddress());
+		TFTPPacket rep = null;
+		synchronized (group) {
+			try {
+				/* Parse packet */
+				pkt.Decode(data);
+				/* Log received packet if configuration specifies to */
+				if (pkt.op != TFTPPacket.OP_DATA && pkt.op != TFTPPacket.OP_ACK && Configuration.tftp_log_packets)
+					Log.Add(this, Log.TYPE_INFO, "TFTP " + TFTPPacket.GetOpText(pkt.op) + " received from " + IP.IntToStr(addr));
+				TFTPMulticastGroup.Member m = group.findMember(addr, sender.getPort());
+				if (m == null)
+					rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNKNOWN_TID);
+				else
+					switch (pkt.op) {
+					case TFTPPacket.OP_ACK:
+						onGroupAcknowledge(pkt, group, m);
+						break;
+					case TFTPPacket.OP_ERROR:
+						/* The client has left the group */
+						group.removeMember(m);
+						if (group.getMaster() == null)
+							electMaster(group);
+						break;
+					default:
+						rep = TFTPPacket.ERROR(TFTPPacket.ERROR_ILLEGAL_OPERATION);
+					}
+			}
+			/* Unknown error */
+			catch (Exception e) {
+				rep = TFTPPacket.ERROR(TFTPPacket.ERROR_UNDEFINED, e.getMessage());
+			}
+			/* Send reply */
+			if (rep != null && group.isChannelOpen()) {
+				LogSent(addr, rep);
+				group.getChannel().send(rep.Encode(), sender);
+			}
+		}
+	}
 }
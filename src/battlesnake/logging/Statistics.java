@@ -0,0 +1,51 @@
+package battlesnake.logging;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Named counters, for measuring what the servers are doing */
+public class Statistics {
+
+	/* A counter, safe to update from any thread without locking or allocating */
+	public static class Counter {
+
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter() {
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/* The counters, by name */
+	private static final Map<String, Counter> counters = new TreeMap<String, Counter>();
+
+	/* Get a counter, creating it if it does not exist */
+	public static synchronized Counter Counter(String name) {
+		Counter c = counters.get(name);
+		if (c == null) {
+			c = new Counter();
+			counters.put(name, c);
+		}
+		return c;
+	}
+
+	/* Dumps the counters to STDOUT */
+	public static synchronized void Show() {
+		System.out.print("Statistics\n");
+		for (Map.Entry<String, Counter> e : counters.entrySet())
+			System.out.print(e.getKey() + " = " + e.getValue().get() + "\n");
+	}
+
+}
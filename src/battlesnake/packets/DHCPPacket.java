@@ -170,7 +170,8 @@ public class DHCPPacket extends Packet {
 			OPTION_MAX_MESSAGE_LEN = 57, OPTION_RENEWAL_TIME = 58,
 			OPTION_REBIND_TIME = 59, OPTION_CLASS_IDENT = 60,
 			OPTION_CLIENT_IDENT = 61, OPTION_TFTP_SERVER = 66,
-			OPTION_BOOTFILE_NAME = 67, OPTION_AUTOCONF = 116,
+			OPTION_BOOTFILE_NAME = 67, OPTION_USER_CLASS = 77,
+			OPTION_AUTOCONF = 116, OPTION_IPXE_ENCAP = (byte) 175,
 			OPTION_END = (byte) 0xff;
 
 	/* Append an option to the packet */
@@ -8,6 +8,7 @@ import java.nio.charset.Charset;
 public abstract class Packet {
 
 	public static Charset Encoding = Charset.forName("US-ASCII");
+	private static final Charset Latin1 = Charset.forName("ISO-8859-1");
 
 	/* Decode a raw binary packet into this object */
 	public abstract void Decode(ByteBuffer source);
@@ -15,17 +16,25 @@ public abstract class Packet {
 	/* Encode this object to a raw binary packet */
 	public abstract ByteBuffer Encode();
 
-	/* Decode a null terminated string */
+	/*
+	 * Decode a null terminated string (or the rest of the source if it has
+	 * no terminator), one character per byte
+	 */
 	protected String DecodeNTS(ByteBuffer source) {
-		CharBuffer str = CharBuffer.allocate(source.limit());
-		while (source.remaining() > 0) {
-			byte b = source.get();
-			if (b == (byte) 0)
-				break;
-			str.put((char) b);
+		int start = source.position();
+		int end = start;
+		while (end < source.limit() && source.get(end) != 0)
+			end++;
+		String str;
+		if (source.hasArray())
+			str = new String(source.array(), source.arrayOffset() + start, end - start, Latin1);
+		else {
+			byte[] b = new byte[end - start];
+			source.get(b);
+			str = new String(b, Latin1);
 		}
-		str.flip();
-		return str.toString();
+		source.position(Math.min(end + 1, source.limit()));
+		return str;
 	}
 
 	/* Decode a fixed length string */
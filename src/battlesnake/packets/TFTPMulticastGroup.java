@@ -0,0 +1,300 @@
+package battlesnake.packets;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import battlesnake.bootserver.Configuration;
+import battlesnake.storage.Content;
+import battlesnake.utils.TimerWheel;
+
+/*
+ * A multicast TFTP transfer (RFC 2090), shared by all the clients reading
+ * the same file with the same block size. Blocks are sent once to the
+ * group address, paced by the ACKs of one "master" client. When the master
+ * has the whole file, another member becomes master and requests the
+ * blocks it missed.
+ */
+public class TFTPMulticastGroup {
+
+	/* A client in the group */
+	public static class Member {
+
+		public final int remoteIP;
+		public final int remotePort;
+		/* Last block acknowledged by the client, it needs the block after it */
+		public long acked = 0;
+		/* Last OACK sent to the client */
+		public TFTPPacket oack = null;
+
+		public Member(int remoteIP, int remotePort) {
+			this.remoteIP = remoteIP;
+			this.remotePort = remotePort;
+		}
+	}
+
+	/* Group properties */
+	private final String key;
+	private final int address;
+	private final int port;
+	private final int blocksize;
+	private final InetSocketAddress target;
+	private Content file = null;
+	private Content.Cursor cursor = null;
+	private DatagramChannel channel = null;
+	/* DATA packet buffer, reused for every block */
+	private final ByteBuffer packet;
+	/* Members, in order of joining */
+	private final List<Member> members = new ArrayList<Member>();
+	private Member master = null;
+	/* The master has been sent an OACK which it has not yet acknowledged */
+	private boolean masterpending = false;
+	/* Retransmission state */
+	private TimerWheel.Timer timer = null;
+	private int retries = 0;
+	private long rto = Configuration.tftp_retransmit_timeout_initial;
+	/* Highest block sent to the group */
+	private long lastsent = 0;
+
+	/* Constructor for a group, use TFTPMulticastGroup.Manager.New instead of this */
+	private TFTPMulticastGroup(String key, int address, int port, int blocksize) throws IOException {
+		this.key = key;
+		this.address = address;
+		this.port = port;
+		this.blocksize = blocksize;
+		this.target = new InetSocketAddress(InetAddress.getByAddress(IP.IntToBytes(address)), port);
+		this.packet = ByteBuffer.allocateDirect(4 + blocksize);
+	}
+
+	/* Property getter */
+	public int getBlockSize() {
+		return blocksize;
+	}
+
+	/* Property getter */
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/* Property getter */
+	public TimerWheel.Timer getTimer() {
+		return timer;
+	}
+
+	/* Property setter */
+	public void setTimer(TimerWheel.Timer value) {
+		timer = value;
+	}
+
+	/* Open the file */
+	public void openFile(Content content) {
+		file = content;
+		cursor = file.cursor();
+	}
+
+	/* Get the size of the open file */
+	public long getFileSize() {
+		return file.getSize();
+	}
+
+	/* Block number of the final block of the file */
+	public long getFinalBlock() {
+		return file.getSize() / blocksize + 1;
+	}
+
+	/*
+	 * Open the group's port, which is the transfer ID for every member,
+	 * and send multicasts from the configured interface
+	 */
+	public void openChannel(InetSocketAddress local) throws IOException {
+		channel = DatagramChannel.open();
+		channel.bind(local);
+		NetworkInterface intf = NetworkInterface.getByName(Configuration.network_interface);
+		if (intf != null)
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, intf);
+	}
+
+	/* Is the group's port open? */
+	public boolean isChannelOpen() {
+		return channel != null && channel.isOpen();
+	}
+
+	/* Close the group's port and file */
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+		}
+		if (file != null) {
+			file.release();
+			file = null;
+			cursor = null;
+		}
+	}
+
+	/* Value of the multicast option in an OACK to a member */
+	public String getOptionValue(boolean master) {
+		return IP.IntToStr(address) + "," + port + "," + (master ? "1" : "0");
+	}
+
+	/* Add a member */
+	public void addMember(Member m) {
+		members.add(m);
+	}
+
+	/* Remove a member */
+	public void removeMember(Member m) {
+		members.remove(m);
+		if (master == m)
+			master = null;
+	}
+
+	/* Find a member by client address and port */
+	public Member findMember(int remoteIP, int remotePort) {
+		for (Member m : members)
+			if (m.remoteIP == remoteIP && m.remotePort == remotePort)
+				return m;
+		return null;
+	}
+
+	/* Are there any members left? */
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	/* Property getter */
+	public Member getMaster() {
+		return master;
+	}
+
+	/* Make a member the master, it is sent an OACK which it must acknowledge */
+	public void setMaster(Member m) {
+		master = m;
+		masterpending = true;
+		retries = 0;
+	}
+
+	/* Is the master's OACK unacknowledged? */
+	public boolean isMasterPending() {
+		return masterpending;
+	}
+
+	/* Choose the next master, the longest-standing member */
+	public Member nextMaster() {
+		return members.isEmpty() ? null : members.get(0);
+	}
+
+	/* Record an acknowledgement from the master */
+	public void acknowledged() {
+		masterpending = false;
+		retries = 0;
+		rto = Configuration.tftp_retransmit_timeout_initial;
+	}
+
+	/* Current retransmission timeout (milliseconds) */
+	public long getRetransmitTimeout() {
+		return rto;
+	}
+
+	/*
+	 * The retransmission timer expired, back off the timeout. Returns
+	 * false if the retry limit has been reached.
+	 */
+	public boolean timedOut() {
+		rto = Math.min(rto * 2, Configuration.tftp_retransmit_timeout_max);
+		return ++retries <= Configuration.tftp_retransmit_retries;
+	}
+
+	/* Highest block sent to the group */
+	public long getLastSent() {
+		return lastsent;
+	}
+
+	/* Send a DATA block to the group */
+	public void writeData(long block) throws IOException {
+		if (block > lastsent)
+			lastsent = block;
+		ByteBuffer data = cursor.read((long) blocksize * (block - 1), blocksize);
+		packet.clear();
+		packet.putShort((short) TFTPPacket.OP_DATA);
+		packet.putShort((short) block);
+		TFTPPacket.DataBytesCopied.add(data.remaining());
+		packet.put(data);
+		packet.flip();
+		channel.send(packet, target);
+	}
+
+	/* Send a packet to one member */
+	public void send(Member m, TFTPPacket pkt) throws IOException {
+		channel.send(pkt.Encode(), new InetSocketAddress(InetAddress.getByAddress(IP.IntToBytes(m.remoteIP)), m.remotePort));
+	}
+
+	/* Group manager */
+	public static class Manager {
+
+		/* Groups, keyed by file and block size */
+		private static final Map<String, TFTPMulticastGroup> Groups = new HashMap<String, TFTPMulticastGroup>();
+
+		/*
+		 * Create a new group, with the first free address from the
+		 * configured range. Returns null if all addresses are in use.
+		 */
+		public static synchronized TFTPMulticastGroup New(String key, int blocksize) throws IOException {
+			for (int i = 0; i < Configuration.tftp_multicast_address_count; i++) {
+				int address = Configuration.tftp_multicast_address + i;
+				boolean used = false;
+				for (TFTPMulticastGroup g : Groups.values())
+					used |= g.address == address;
+				if (!used) {
+					TFTPMulticastGroup g = new TFTPMulticastGroup(key, address, Configuration.tftp_multicast_port, blocksize);
+					Groups.put(key, g);
+					return g;
+				}
+			}
+			return null;
+		}
+
+		/* Remove a group */
+		public static synchronized void End(TFTPMulticastGroup g) {
+			if (Groups.get(g.key) == g)
+				Groups.remove(g.key);
+		}
+
+		/* Find a group by file and block size */
+		public static synchronized TFTPMulticastGroup Find(String key) {
+			return Groups.get(key);
+		}
+
+		/* Find the group that a client belongs to */
+		public static TFTPMulticastGroup FindMember(int remoteIP, int remotePort) {
+			for (TFTPMulticastGroup g : All())
+				synchronized (g) {
+					if (g.findMember(remoteIP, remotePort) != null)
+						return g;
+				}
+			return null;
+		}
+
+		/* Get all groups */
+		public static synchronized List<TFTPMulticastGroup> All() {
+			return new ArrayList<TFTPMulticastGroup>(Groups.values());
+		}
+
+		/* Number of groups */
+		public static synchronized int Count() {
+			return Groups.size();
+		}
+	}
+
+}
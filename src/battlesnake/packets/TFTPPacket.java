@@ -3,6 +3,7 @@ package battlesnake.packets;
 import java.nio.ByteBuffer;
 import java.util.Map;
 
+import battlesnake.logging.Statistics;
 import battlesnake.utils.CaseInsensitiveHashMap;
 
 /* A TFTP packet */
@@ -20,48 +21,92 @@ public class TFTPPacket extends Packet {
 	/* Used for RRQ/WRQ */
 	public String filename;
 	public String mode;
-	public CaseInsensitiveHashMap<String> options = new CaseInsensitiveHashMap<String>();
-	/* Used for ACK/DATA */
+	/* Options of RRQ/WRQ/OACK, null until there are any */
+	public CaseInsensitiveHashMap<String> options = null;
+	/*
+	 * Used for ACK/DATA, the unsigned 16-bit block number from the wire.
+	 * Transfers of more than 65535 blocks roll the block number over to 0
+	 * (as tftp-hpa and iPXE expect), sessions count blocks in 64 bits and
+	 * use BlockAtOrBefore/BlockAtOrAfter to recover the full number.
+	 */
 	public int block_id;
 	/* Used for DATA */
 	public ByteBuffer data;
-	/* Used for ERROR */
+	/* Used for ERROR, a decoded message is only read by getErrorMessage */
 	public int ErrorCode;
 	public String ErrorMessage;
+	/* View of the source of the last decoded packet, and that source */
+	private ByteBuffer view = null;
+	private ByteBuffer viewsource = null;
 
 	public TFTPPacket() {
 	}
 
-	/* Decode a binary packet into this object */
+	/*
+	 * Decode a binary packet into this object, which may be reused to
+	 * decode packet after packet. ACK, DATA and ERROR packets are decoded
+	 * in place without allocating: the data of a DATA packet and the
+	 * message of an ERROR packet are a view of the source, which is only
+	 * valid until the source is reused. Strings and options are only
+	 * decoded for RRQ, WRQ and OACK.
+	 */
 	@Override
 	public void Decode(ByteBuffer source) {
 		op = source.getShort();
+		filename = null;
+		mode = null;
+		block_id = 0;
+		data = null;
+		ErrorCode = 0;
+		ErrorMessage = null;
+		if (options != null)
+			options.clear();
 		if (op == OP_RRQ || op == OP_WRQ) {
 			filename = DecodeNTS(source);
 			mode = DecodeNTS(source);
-			while (source.remaining() > 0) {
-				String k = DecodeNTS(source);
-				String v = DecodeNTS(source);
-				options.put(k, v);
-			}
+			DecodeOptions(source);
 		}
 		else if (op == OP_DATA) {
-			block_id = source.getShort();
-			data.put(source);
-			data.flip();
+			block_id = source.getShort() & 0xffff;
+			data = View(source);
+			source.position(source.limit());
 		}
 		else if (op == OP_ACK)
-			block_id = source.getShort();
+			block_id = source.getShort() & 0xffff;
 		else if (op == OP_ERROR) {
 			ErrorCode = source.getShort();
-			ErrorMessage = DecodeNTS(source);
+			View(source);
+			source.position(source.limit());
 		}
 		else if (op == OP_OACK)
-			while (source.remaining() > 0) {
-				String k = DecodeNTS(source);
-				String v = DecodeNTS(source);
-				options.put(k, v);
-			}
+			DecodeOptions(source);
+	}
+
+	/* Decode the options at the end of a packet */
+	private void DecodeOptions(ByteBuffer source) {
+		while (source.remaining() > 0) {
+			String k = DecodeNTS(source);
+			String v = DecodeNTS(source);
+			setOption(k, v);
+		}
+	}
+
+	/* Point the view at the rest of the source, creating it for a new source */
+	private ByteBuffer View(ByteBuffer source) {
+		if (viewsource != source) {
+			view = source.duplicate();
+			viewsource = source;
+		}
+		view.limit(source.limit());
+		view.position(source.position());
+		return view;
+	}
+
+	/* The message of an ERROR packet, decoded from a received packet when first read */
+	public String getErrorMessage() {
+		if (ErrorMessage == null && op == OP_ERROR && view != null)
+			ErrorMessage = DecodeNTS(view.duplicate());
+		return ErrorMessage;
 	}
 
 	/* Decode a binary packet into a new object */
@@ -72,12 +117,7 @@ public class TFTPPacket extends Packet {
 	/* Encode this packet to a binary blob */
 	@Override
 	public ByteBuffer Encode() {
-		int len = 1024;
-		if (data != null) {
-			len += data.limit();
-			data.rewind();
-		}
-		ByteBuffer pkt = ByteBuffer.allocate(len);
+		ByteBuffer pkt = ByteBuffer.allocate(EncodedLength());
 		pkt.putShort((short) op);
 		if (op == OP_RRQ || op == OP_WRQ) {
 			pkt.put(filename.getBytes(Encoding));
@@ -94,8 +134,13 @@ public class TFTPPacket extends Packet {
 		}
 		else if (op == OP_DATA) {
 			pkt.putShort((short) block_id);
-			if (data != null)
+			/* Leave the data where it was, so the packet can be re-encoded */
+			if (data != null) {
+				DataBytesCopied.add(data.remaining());
+				int pos = data.position();
 				pkt.put(data);
+				data.position(pos);
+			}
 		}
 		else if (op == OP_ACK)
 			pkt.putShort((short) block_id);
@@ -104,7 +149,7 @@ public class TFTPPacket extends Packet {
 			pkt.put(ErrorMessage.getBytes(Encoding));
 			pkt.put((byte) 0);
 		}
-		else if (op == OP_OACK)
+		else if (op == OP_OACK && options != null)
 			for (Map.Entry<String, String> opt : options.entrySet()) {
 				String k = opt.getKey();
 				String v = opt.getValue();
@@ -117,6 +162,42 @@ public class TFTPPacket extends Packet {
 		return pkt;
 	}
 
+	/* Length of the encoded packet (at most, for strings which are not ASCII) */
+	private int EncodedLength() {
+		int len = 2;
+		if (op == OP_RRQ || op == OP_WRQ)
+			len += filename.length() + 1 + mode.length() + 1;
+		else if (op == OP_DATA)
+			len += 2 + (data != null ? data.remaining() : 0);
+		else if (op == OP_ACK)
+			len += 2;
+		else if (op == OP_ERROR)
+			len += 2 + ErrorMessage.length() + 1;
+		if ((op == OP_RRQ || op == OP_WRQ || op == OP_OACK) && options != null)
+			for (Map.Entry<String, String> opt : options.entrySet())
+				len += opt.getKey().length() + 1 + opt.getValue().length() + 1;
+		return len;
+	}
+
+	/*
+	 * Get the full block number of a received block number, the nearest
+	 * one with the same low 16 bits at or before the given block number
+	 */
+	public static long BlockAtOrBefore(int block_id, long block) {
+		return block - ((block - block_id) & 0xffff);
+	}
+
+	/*
+	 * Get the full block number of a received block number, the nearest
+	 * one with the same low 16 bits at or after the given block number
+	 */
+	public static long BlockAtOrAfter(int block_id, long block) {
+		return block + ((block_id - block) & 0xffff);
+	}
+
+	/* Number of bytes of DATA payload copied between buffers before sending */
+	public static final Statistics.Counter DataBytesCopied = Statistics.Counter("tftp_data_bytes_copied");
+
 	/* Create a TFTP packet */
 	private TFTPPacket(int opcode, String filename, String mode, int block_id, ByteBuffer data, int ErrorCode, String ErrorMessage) {
 		this.op = opcode;
@@ -133,7 +214,7 @@ public class TFTPPacket extends Packet {
 		if (k.length != v.length)
 			throw new Exception("TFTP option list does not match length of value list");
 		for (int i = 0; i < k.length; i++)
-			options.put(k[i], v[i]);
+			setOption(k[i], v[i]);
 		return this;
 	}
 
@@ -217,15 +298,15 @@ public class TFTPPacket extends Packet {
 		}
 		else if (op == OP_DATA) {
 			sb.append(String.format("blockid=%d\n", block_id));
-			if (data.limit() > 0) {
+			if (data != null && data.remaining() > 0) {
 				String hexbytes = "";
 				String ascbytes = "";
-				for (int i = 0; i < data.limit() && i < 32; i++) {
-					byte b = data.get(i);
+				for (int i = 0; i < data.remaining() && i < 32; i++) {
+					byte b = data.get(data.position() + i);
 					hexbytes += (i != 0 ? "," : "") + Integer.toHexString(0x100 | b & 0xff).substring(1);
 					ascbytes += b >= 32 && b < 128 ? (char) b : "?";
 				}
-				sb.append(String.format("data=%d bytes [ASCII: %s] [HEX: %s]\n", data.limit(), ascbytes, hexbytes));
+				sb.append(String.format("data=%d bytes [ASCII: %s] [HEX: %s]\n", data.remaining(), ascbytes, hexbytes));
 			}
 			else
 				sb.append("data=0 bytes");
@@ -234,9 +315,9 @@ public class TFTPPacket extends Packet {
 			sb.append(String.format("blockid=%d\n", block_id));
 		else if (op == OP_ERROR) {
 			sb.append(String.format("errorcode=%d\n", ErrorCode));
-			sb.append(String.format("errortext=%s\n", ErrorMessage));
+			sb.append(String.format("errortext=%s\n", getErrorMessage()));
 		}
-		if ((op == OP_OACK || op == OP_RRQ || op == OP_WRQ) && options.size() > 0) {
+		if ((op == OP_OACK || op == OP_RRQ || op == OP_WRQ) && hasOptions()) {
 			sb.append("options=\n");
 			for (Map.Entry<String, String> opt : options.entrySet())
 				sb.append(String.format("\t%s=%s\n", opt.getKey(), opt.getValue()));
@@ -247,7 +328,7 @@ public class TFTPPacket extends Packet {
 	/* Set the block-size option */ 
 	public void SetBlockSize(int BlockSize) {
 		if (op == OP_RRQ || op == OP_WRQ || op == OP_OACK)
-			options.put(OPTION_BLOCKSIZE, ((Integer) BlockSize).toString());
+			setOption(OPTION_BLOCKSIZE, ((Integer) BlockSize).toString());
 	}
 
 	/* Does the packet have any options set? */
@@ -262,19 +343,31 @@ public class TFTPPacket extends Packet {
 
 	/* Get the value of an option */
 	public String getOption(String name) {
-		return options.get(name);
+		return options == null ? null : options.get(name);
 	}
 
 	/* Set the value of an option */
 	public void setOption(String name, String value) {
+		if (options == null)
+			options = new CaseInsensitiveHashMap<String>();
 		options.put(name, value);
-
 	}
 
 	/* ??? */
 	public final static String OPTION_FILESIZE = "tsize";
 	public final static String OPTION_BLOCKSIZE = "blksize";
+	/* RFC 2349 */
+	public final static String OPTION_TIMEOUT = "timeout";
+	/* RFC 2090 */
+	public final static String OPTION_MULTICAST = "multicast";
+	/* RFC 7440 */
+	public final static String OPTION_WINDOWSIZE = "windowsize";
 	/* Ethernet MTU */
 	public final static int BLOCKSIZE_ETHERNET = 1428;
+	/* Limits of the blksize option (RFC 2348) */
+	public final static int BLOCKSIZE_MIN = 8;
+	public final static int BLOCKSIZE_MAX = 65464;
+	/* IP, UDP and TFTP headers of a DATA packet */
+	public final static int DATA_OVERHEAD = 20 + 8 + 4;
 
 }
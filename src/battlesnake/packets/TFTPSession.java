@@ -1,31 +1,89 @@
 package battlesnake.packets;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.util.Date;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
 
 import battlesnake.bootserver.Configuration;
+import battlesnake.logging.Log;
+import battlesnake.logging.Statistics;
+import battlesnake.storage.Content;
+import battlesnake.storage.Upload;
+import battlesnake.utils.ConcurrentLongMap;
 import battlesnake.utils.Path;
+import battlesnake.utils.TimerWheel;
 
-/* Handles a TFTP session */
+/* Handles a TFTP session, i.e. one transfer */
 public class TFTPSession {
 
 	/* Session properties */
 	private int remoteIP = 0;
 	private int remotePort = 0;
-	private int blocksize = 512;
-	private RandomAccessFile file = null;
-	private boolean eof = false;
+	private int blocksize = DEFAULT_BLOCKSIZE;
+	private int windowsize = 1;
+	private Content file = null;
+	private Content.Cursor cursor = null;
+	private DatagramChannel channel = null;
+	/* DATA header and gathering-write array, reused for every block */
+	private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+	private final ByteBuffer[] gather = new ByteBuffer[2];
 	private String filename = "";
 	private String rootpath = "";
-	private long lastactivity = 0;
+	/* Time of the last packet from the client (System.nanoTime) */
+	private volatile long lastactivity = System.nanoTime();
+	private final TimerWheel.Timer expiry = new ExpiryTimer(this);
+	/*
+	 * Retransmission state (times are in nanoseconds, from
+	 * System.nanoTime): the retransmission timeout (RTO) is estimated from
+	 * the round-trip time of each window as in RFC 6298, and is limited by
+	 * the RFC 2349 timeout option if the client set one
+	 */
+	private TimerWheel.Timer timer = null;
+	/* Sends the rest of a window which had to wait for the rate limit */
+	private TimerWheel.Timer pacer = null;
+	private TFTPPacket oack = null;
+	private long lastacked = 0;
+	private long lastsent = 0;
+	private long senttime = 0;
+	private boolean retransmitted = false;
+	private int retries = 0;
+	private long srtt = 0;
+	private long rttvar = 0;
+	private long rto = Configuration.tftp_retransmit_timeout_initial * 1000000L;
+	private long maxrto = Configuration.tftp_retransmit_timeout_max * 1000000L;
+	/*
+	 * Congestion control (RFC 5681, in blocks rather than bytes): the
+	 * congestion window, i.e. the blocks which may be sent per round trip,
+	 * the slow start threshold, and the last block sent when the window was
+	 * last cut, so that the blocks lost from one window only cut it once
+	 */
+	private double cwnd = INITIAL_CWND;
+	private double ssthresh = Double.MAX_VALUE;
+	private long recover = 0;
+	/*
+	 * Upload (WRQ) state: the file being received, the highest block
+	 * received in order and the highest block acknowledged, whether a gap
+	 * after the blocks received has been acknowledged, and whether the
+	 * final block has been received
+	 */
+	private Upload upload = null;
+	private long received = 0;
+	private long ackedreceived = 0;
+	private boolean gapacked = false;
+	private boolean complete = false;
+	/*
+	 * Read-ahead state: bytes of the file loaded into memory, bytes
+	 * requested, and is a chunk being loaded
+	 */
+	private long loadedto = 0;
+	private long requestedto = 0;
+	private boolean loading = false;
 
 	/*
-	 * Constructor for a session, use TFTPSession.Manager.{New|FindOrStart}
-	 * instead of this
+	 * Constructor for a session, use TFTPSession.Manager.New instead of
+	 * this
 	 */
 	public TFTPSession(int remoteIP, int remotePort, String rootpath, boolean canreceive) {
 		this.remoteIP = remoteIP;
@@ -53,6 +111,16 @@ public class TFTPSession {
 		blocksize = value;
 	}
 
+	/* Property getter */
+	public int getWindowSize() {
+		return windowsize;
+	}
+
+	/* Property setter */
+	public void setWindowSize(int value) {
+		windowsize = value;
+	}
+
 	/* Property getter */
 	public String getFilename() {
 		return filename;
@@ -63,109 +131,508 @@ public class TFTPSession {
 		return rootpath;
 	}
 
+	/* Default TFTP block size */
+	public static final int DEFAULT_BLOCKSIZE = 512;
+
+	/*
+	 * Initial congestion window (blocks), as for TCP (RFC 6928), and the
+	 * share of it kept on a loss, as for CUBIC (RFC 9438)
+	 */
+	public static final int INITIAL_CWND = 10;
+	public static final double CWND_DECREASE = 0.7;
+
 	/* Close a session */
 	public void closeSession() {
 		closeFile();
+		closeUpload();
+		closeChannel();
+	}
+
+	/*
+	 * Open the session's own port (transfer ID), connected to the
+	 * client's port so that only the client's packets are received
+	 */
+	public void openChannel(InetSocketAddress local, InetSocketAddress remote) throws IOException {
+		channel = DatagramChannel.open();
+		channel.bind(local);
+		channel.connect(remote);
+	}
+
+	/* Close the session's port */
+	public void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	/* Property getter */
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/* Is the session's port open? */
+	public boolean isChannelOpen() {
+		return channel != null && channel.isOpen();
 	}
 
 	/* Open a file */
-	public void openFile(String filename, boolean write) throws Exception {
+	public void openFile(Content content) throws Exception {
 		if (file != null)
 			throw new Exception("Cannot open a file for this TFTP session, a file is already open");
-		if (write)
-			throw new Exception("Writing not implemented");
-		file = new RandomAccessFile(filename, "r");
-		eof = file.length() == 0;
+		file = content;
+		filename = content.toString();
+		cursor = file.cursor();
 	}
 
 	/* Close the file */
 	public void closeFile() {
 		if (file != null) {
-			try {
-				file.close();
-			}
-			catch (IOException e) {
-			}
+			file.release();
 			file = null;
+			cursor = null;
 		}
 	}
 
-	/* At end of file? */
-	public boolean endOfFile() {
-		return eof;
+	/* Property getter */
+	public Content getContent() {
+		return file;
+	}
+
+	/* Bytes of the file loaded into memory by reading ahead */
+	public long getLoadedTo() {
+		return loadedto;
+	}
+
+	/* Bytes of the file requested by reading ahead */
+	public long getRequestedTo() {
+		return requestedto;
+	}
+
+	/* Is a chunk being read ahead? */
+	public boolean isLoading() {
+		return loading;
+	}
+
+	/* Record that the file up to the given offset is being read ahead */
+	public void loading(long to) {
+		requestedto = to;
+		loading = true;
+	}
+
+	/* Record that the file up to the given offset has been read ahead */
+	public void loaded(long to) {
+		loadedto = Math.max(loadedto, to);
+		loading = false;
 	}
 
 	/* Get the size of the open file */
 	public long getFileSize() throws IOException {
-		return file.length();
-	}
-
-	/* Read a block from a file */
-	public boolean readFile(TFTPPacket reply) throws IOException {
-		byte[] buff = new byte[this.blocksize];
-		if (file.getFilePointer() != (long) this.blocksize * (reply.block_id - 1))
-			file.seek((long) this.blocksize * (reply.block_id - 1));
-		int len = file.read(buff);
-		if (len < 0) {
-			len = 0;
-			eof = true;
+		return file.getSize();
+	}
+
+	/*
+	 * Block number of the final block of the file, which is always short
+	 * (possibly empty)
+	 */
+	public long getFinalBlock() throws IOException {
+		return file.getSize() / blocksize + 1;
+	}
+
+	/* Property getter */
+	public TimerWheel.Timer getTimer() {
+		return timer;
+	}
+
+	/* Property setter */
+	public void setTimer(TimerWheel.Timer value) {
+		timer = value;
+	}
+
+	/* Property getter */
+	public TimerWheel.Timer getPacer() {
+		return pacer;
+	}
+
+	/* Property setter */
+	public void setPacer(TimerWheel.Timer value) {
+		pacer = value;
+	}
+
+	/* The OACK that has been sent but not yet acknowledged (if any) */
+	public TFTPPacket getOptionAck() {
+		return oack;
+	}
+
+	/* Property setter */
+	public void setOptionAck(TFTPPacket value) {
+		oack = value;
+	}
+
+	/* Is a file open? */
+	public boolean isFileOpen() {
+		return file != null;
+	}
+
+	/* Start receiving a file */
+	public void openUpload(Upload value) throws Exception {
+		if (file != null || upload != null)
+			throw new Exception("Cannot open a file for this TFTP session, a file is already open");
+		upload = value;
+		filename = value.toString();
+	}
+
+	/* Close the file being received, abandoning it if it is incomplete */
+	public void closeUpload() {
+		if (upload != null) {
+			if (!complete)
+				upload.abort();
+			upload = null;
+		}
+	}
+
+	/* Property getter */
+	public Upload getUpload() {
+		return upload;
+	}
+
+	/* Is a file being received? */
+	public boolean isUpload() {
+		return upload != null;
+	}
+
+	/* Highest block received in order */
+	public long getLastReceived() {
+		return received;
+	}
+
+	/* Highest block received that has been acknowledged */
+	public long getLastReceivedAcknowledged() {
+		return ackedreceived;
+	}
+
+	/*
+	 * Record the next block in order. The first block after an ACK times
+	 * a round trip, unless the ACK was retransmitted (Karn's algorithm).
+	 */
+	public void received(long block) {
+		if (block == ackedreceived + 1 && !retransmitted) {
+			measured(System.nanoTime() - senttime);
+			retransmitted = true;
+		}
+		received = block;
+		gapacked = false;
+		retries = 0;
+	}
+
+	/* Record an acknowledgement sent for the blocks received, or retransmitted */
+	public void acknowledgedReceived(long block, boolean retransmit) {
+		ackedreceived = block;
+		retransmitted = retransmit;
+		senttime = System.nanoTime();
+	}
+
+	/*
+	 * Record that a gap after the blocks received is being acknowledged,
+	 * returns false if it already has been
+	 */
+	public boolean acknowledgedGap() {
+		if (gapacked)
 			return false;
+		gapacked = true;
+		return true;
+	}
+
+	/* Has the final block been received? */
+	public boolean isUploadComplete() {
+		return complete;
+	}
+
+	/* Record that the final block has been received */
+	public void uploadComplete() {
+		complete = true;
+	}
+
+	/* Highest block acknowledged by the client */
+	public long getLastAcknowledged() {
+		return lastacked;
+	}
+
+	/* Highest block sent to the client */
+	public long getLastSent() {
+		return lastsent;
+	}
+
+	/* Current retransmission timeout (milliseconds) */
+	public long getRetransmitTimeout() {
+		return rto / 1000000L;
+	}
+
+	/* Smoothed round-trip time (microseconds), 0 until one has been measured */
+	public long getRoundTripTime() {
+		return srtt / 1000L;
+	}
+
+	/* Congestion window (blocks), which never exceeds the window size */
+	public int getCongestionWindow() {
+		return (int) Math.min(cwnd, windowsize);
+	}
+
+	/* Limit the retransmission timeout to the RFC 2349 timeout option (seconds) */
+	public void setTimeoutOption(int seconds) {
+		maxrto = seconds * 1000000000L;
+		rto = Math.min(rto, maxrto);
+	}
+
+	/*
+	 * Record that blocks up to and including last have been sent. Round
+	 * trips are not timed for retransmitted blocks (Karn's algorithm).
+	 */
+	public void sent(long last, boolean retransmit) {
+		if (last > lastsent)
+			lastsent = last;
+		retransmitted = retransmit;
+		senttime = System.nanoTime();
+	}
+
+	/*
+	 * Record an acknowledgement, updating the round-trip time estimate if
+	 * it acknowledges a window which was not retransmitted
+	 */
+	public void acknowledged(long block) {
+		if (block <= lastacked && block != 0)
+			return;
+		if (block == lastsent && !retransmitted)
+			measured(System.nanoTime() - senttime);
+		rto = Math.max(Configuration.tftp_retransmit_timeout_min * 1000000L, Math.min(rto, maxrto));
+		lastacked = block;
+		retries = 0;
+	}
+
+	/* Update the round-trip time estimate and the retransmission timeout with a round trip */
+	private void measured(long rtt) {
+		if (srtt == 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
 		}
-		reply.data = ByteBuffer.wrap(buff, 0, len);
+		else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		rto = Math.max(Configuration.tftp_retransmit_timeout_min * 1000000L, Math.min(srtt + 4 * rttvar, maxrto));
+	}
+
+	/*
+	 * Every block sent has been acknowledged: grow the congestion window
+	 * by the blocks acknowledged in slow start, and by one block per
+	 * window's worth of blocks in congestion avoidance. The window does not
+	 * grow past the window size, where it no longer limits anything.
+	 */
+	public void congestionAck(long blocks) {
+		if (cwnd < ssthresh)
+			cwnd = Math.min(cwnd + blocks, ssthresh);
+		else
+			cwnd += blocks / cwnd;
+		cwnd = Math.min(cwnd, windowsize);
+	}
+
+	/*
+	 * An ACK of a block before the last one sent shows that the next block
+	 * was lost: cut the congestion window, unless the block was sent
+	 * before the window was last cut. Returns whether it was cut.
+	 */
+	public boolean congestionLoss(long block) {
+		if (block < recover)
+			return false;
+		ssthresh = Math.max(getCongestionWindow() * CWND_DECREASE, 2);
+		cwnd = ssthresh;
+		recover = lastsent;
+		return true;
+	}
+
+	/*
+	 * The retransmission timer expired. Nothing after the last blocks of a
+	 * window can show that they were lost, so a first timeout is taken as
+	 * a loss. If the retransmission times out as well, start
+	 * again from a single block, in slow start. Returns whether the window
+	 * was cut.
+	 */
+	public boolean congestionTimeout() {
+		if (retries <= 1)
+			return congestionLoss(lastacked);
+		ssthresh = Math.max(getCongestionWindow() * CWND_DECREASE, 2);
+		cwnd = 1;
+		recover = lastsent;
 		return true;
 	}
 
+	/* Number of retransmissions since the last acknowledgement */
+	public int getRetries() {
+		return retries;
+	}
+
+	/*
+	 * The retransmission timer expired, back off the timeout. Returns
+	 * false if the retry limit has been reached.
+	 */
+	public boolean timedOut() {
+		rto = Math.min(rto * 2, maxrto);
+		return ++retries <= Configuration.tftp_retransmit_retries;
+	}
+
+	/*
+	 * Send a DATA block from the session's port, as a gathering write of
+	 * the header and a view of the file, so the block is neither copied
+	 * nor allocated on its way to the socket
+	 */
+	public void writeData(long block) throws IOException {
+		ByteBuffer data = cursor.read((long) this.blocksize * (block - 1), this.blocksize);
+		header.clear();
+		header.putShort((short) TFTPPacket.OP_DATA);
+		header.putShort((short) block);
+		header.flip();
+		gather[0] = header;
+		gather[1] = data;
+		DataBlocks.increment();
+		/* The socket copies heap buffers into a temporary direct buffer */
+		if (!data.isDirect())
+			TFTPPacket.DataBytesCopied.add(data.remaining());
+		channel.write(gather);
+	}
+
+	/* Send an ACK of a block of an upload from the session's port, reusing the DATA header */
+	public void writeAck(long block) throws IOException {
+		header.clear();
+		header.putShort((short) TFTPPacket.OP_ACK);
+		header.putShort((short) block);
+		header.flip();
+		channel.write(header);
+	}
+
+	/* Number of DATA blocks sent */
+	private static final Statistics.Counter DataBlocks = Statistics.Counter("tftp_data_blocks");
+
 	/* Keep session active */
 	public void heartbeat() {
-		lastactivity = new Date().getTime();
+		lastactivity = System.nanoTime();
+	}
+
+	/*
+	 * Ends the session once it has been idle for Manager.Timeout seconds,
+	 * packets only update the session's activity time, so the timer is
+	 * re-scheduled on expiry rather than on every packet
+	 */
+	private static class ExpiryTimer extends TimerWheel.Timer {
+
+		private final TFTPSession ses;
+
+		public ExpiryTimer(TFTPSession ses) {
+			this.ses = ses;
+		}
+
+		@Override
+		protected void expire() {
+			long remaining = Manager.Timeout * 1000L - (System.nanoTime() - ses.lastactivity) / 1000000L;
+			if (remaining > 0) {
+				Manager.Schedule(this, remaining);
+				return;
+			}
+			if (Configuration.tftp_log_packets)
+				Log.Add("TFTPSession", Log.TYPE_INFO, "TFTP session with " + IP.IntToStr(ses.remoteIP) + ":" + ses.remotePort + " expired");
+			Manager.Expired(ses);
+		}
 	}
 
 	/* Session manager */
 	public static class Manager {
 
-		/* Session list */
-		private static Map<Integer, TFTPSession> Sessions = new TreeMap<Integer, TFTPSession>();
+		/* Ends sessions which have expired, as the server ends any other session */
+		public interface ExpiryListener {
+			public void OnExpired(TFTPSession ses);
+		}
+
+		/* Session list, keyed by client address and port */
+		private static final ConcurrentLongMap<TFTPSession> Sessions = new ConcurrentLongMap<TFTPSession>();
 		/* Session timeout value (seconds) */
 		public static int Timeout = 300;
+		/* Coarse timer wheel which expires idle sessions, and what ends them (null to just close them) */
+		private static TimerWheel Expiry = null;
+		private static ExpiryListener Listener = null;
+
+		/* Key of a client's address and port */
+		public static long Key(int remoteIP, int remotePort) {
+			return (remoteIP & 0xffffffffL) << 16 | remotePort;
+		}
+
+		/* Start expiring idle sessions, which the listener ends */
+		public static synchronized void Start(ExpiryListener listener) {
+			Listener = listener;
+			if (Expiry == null)
+				Expiry = new TimerWheel("TFTP session expiry", 1000, 64);
+		}
+
+		/* Stop expiring idle sessions */
+		public static synchronized void Stop() {
+			if (Expiry != null) {
+				Expiry.stop();
+				Expiry = null;
+			}
+			Listener = null;
+		}
+
+		/* End an expired session */
+		private static void Expired(TFTPSession ses) {
+			ExpiryListener listener;
+			synchronized (Manager.class) {
+				listener = Listener;
+			}
+			if (listener != null) {
+				listener.OnExpired(ses);
+				return;
+			}
+			synchronized (ses) {
+				ses.closeSession();
+			}
+			End(ses);
+		}
+
+		/* Schedule a timer on the expiry wheel */
+		private static synchronized void Schedule(TimerWheel.Timer t, long delayms) {
+			if (Expiry != null)
+				Expiry.schedule(t, delayms);
+		}
 
 		/* Create a new session */
 		public static TFTPSession New(int remoteIP, int remotePort) {
 			TFTPSession ses = new TFTPSession(remoteIP, remotePort, Configuration.tftp_root_folder, false);
-			Sessions.put(remoteIP, ses);
+			Sessions.put(Key(remoteIP, remotePort), ses);
+			Schedule(ses.expiry, Timeout * 1000L);
 			return ses;
 		}
 
 		/* Kill a session */
-		public static void End(int remoteIP) {
-			Sessions.remove(remoteIP);
-		}
-
-		/* Find a session by client IP */
-		public static TFTPSession Find(int remoteIP) {
-			if (Sessions.containsKey(remoteIP))
-				return Sessions.get(remoteIP);
-			else
-				return null;
-		}
-
-		/*
-		 * Get a session for a specific client, creating a new one if
-		 * needed
-		 */
-		public static TFTPSession FindOrStart(int remoteIP, int remotePort) {
-			if (Sessions.containsKey(remoteIP))
-				return Sessions.get(remoteIP);
-			else
-				return New(remoteIP, remotePort);
-		}
-
-		/* Remove dead (timed-out) sessions */
-		public static void Prune() {
-			for (Map.Entry<Integer, TFTPSession> e : Sessions.entrySet())
-				if (e.getValue().lastactivity + Timeout * 1000 < new Date().getTime()) {
-					e.getValue().closeSession();
-					Sessions.remove(e.getKey());
-				}
+		public static synchronized void End(TFTPSession ses) {
+			Sessions.remove(Key(ses.remoteIP, ses.remotePort), ses);
+			if (Expiry != null)
+				Expiry.cancel(ses.expiry);
+		}
+
+		/* Find a session by client address and port */
+		public static TFTPSession Find(int remoteIP, int remotePort) {
+			return Sessions.get(Key(remoteIP, remotePort));
+		}
+
+		/* Get all sessions */
+		public static List<TFTPSession> All() {
+			return Sessions.values();
+		}
+
+		/* Number of sessions */
+		public static int Count() {
+			return Sessions.size();
 		}
 	}
 
@@ -0,0 +1,276 @@
+package battlesnake.simpleservers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import battlesnake.logging.Log;
+import battlesnake.packets.IP;
+
+/*
+ * A server that accepts TCP connections on a specific port. Connections are
+ * spread over a small pool of threads, each multiplexing its connections
+ * with a selector, so a connection does not need a thread of its own.
+ */
+public abstract class TCPServer extends Server {
+
+	ServerSocketChannel socket = null;
+	private Selector acceptor = null;
+	private Worker[] workers = null;
+	/* Worker to give the next connection to */
+	private int next = 0;
+
+	/* A connection, notified when its channel can be read or written */
+	public static abstract class Connection {
+
+		private SocketChannel channel = null;
+		private SelectionKey key = null;
+		private long lastactive = 0;
+		private boolean closed = false;
+
+		/* Called when the channel has data (or end-of-stream) to read */
+		protected abstract void OnReadable() throws IOException;
+
+		/* Called when the channel can be written, if write interest is set */
+		protected abstract void OnWritable() throws IOException;
+
+		/* Called once, when the connection is closed */
+		protected void OnClose() {
+		}
+
+		/* Property getter */
+		protected SocketChannel getChannel() {
+			return channel;
+		}
+
+		/* Choose the events that the connection is notified of */
+		protected void setInterest(boolean read, boolean write) {
+			key.interestOps((read ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0));
+		}
+
+		/* Close the connection */
+		protected void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+			OnClose();
+		}
+	}
+
+	/*
+	 * Called from the accepting thread for each new connection, returns
+	 * the connection's handler or null to refuse it
+	 */
+	protected abstract Connection OnAccept(SocketChannel channel) throws Exception;
+
+	protected abstract int getPort();
+
+	protected abstract int getInterfaceAddress();
+
+	/* Number of threads handling connections */
+	protected abstract int getThreads();
+
+	/* Close connections which have been idle for this long (milliseconds) */
+	protected abstract int getIdleTimeout();
+
+	/* Interval between calls to OnIdle (milliseconds) */
+	protected static final int IdleInterval = 100;
+
+	/*
+	 * Called from the accepting thread at least every IdleInterval
+	 * milliseconds, whether or not connections are arriving, for
+	 * housekeeping
+	 */
+	protected void OnIdle() throws Exception {
+	}
+
+	/* A thread handling some of the connections */
+	private class Worker extends Thread {
+
+		private final Selector selector;
+		/* Connections accepted but not yet registered with the selector */
+		private final Queue<Connection> accepted = new ConcurrentLinkedQueue<Connection>();
+
+		public Worker(int index) throws IOException {
+			super(TCPServer.this.getClass().getSimpleName() + " worker " + index);
+			selector = Selector.open();
+			setDaemon(true);
+		}
+
+		/* Hand a connection to this thread */
+		public void add(Connection c) {
+			accepted.add(c);
+			selector.wakeup();
+		}
+
+		/* Wake the thread, so it notices that the server is stopping */
+		public void wakeup() {
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			long lastidle = System.nanoTime();
+			try {
+				while (!getStopping()) {
+					selector.select(IdleInterval);
+					long now = System.nanoTime();
+					Connection c;
+					while ((c = accepted.poll()) != null)
+						try {
+							c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+							c.lastactive = now;
+						}
+						catch (IOException e) {
+							c.close();
+						}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						c = (Connection) key.attachment();
+						c.lastactive = now;
+						try {
+							if (key.isValid() && key.isReadable())
+								c.OnReadable();
+							if (key.isValid() && key.isWritable())
+								c.OnWritable();
+						}
+						/* The client has gone */
+						catch (IOException e) {
+							c.close();
+						}
+						catch (Exception e) {
+							Log.Add(TCPServer.this, Log.TYPE_ERR, "Untrapped error (" + e.getClass().getSimpleName() + ") in connection handler: " + e.getMessage());
+							c.close();
+						}
+					}
+					/* Close idle connections */
+					if (now - lastidle >= IdleInterval * 1000000L) {
+						lastidle = now;
+						long timeout = getIdleTimeout() * 1000000L;
+						for (SelectionKey key : selector.keys()) {
+							c = (Connection) key.attachment();
+							if (now - c.lastactive >= timeout)
+								c.close();
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				Log.Add(TCPServer.this, Log.TYPE_ERR, "Connection thread failed: " + e.getMessage());
+			}
+			finally {
+				for (SelectionKey key : selector.keys())
+					((Connection) key.attachment()).close();
+				Connection c;
+				while ((c = accepted.poll()) != null)
+					c.close();
+				try {
+					selector.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void PreRun() throws Exception {
+		socket = ServerSocketChannel.open();
+		socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		socket.bind(new InetSocketAddress(InetAddress.getByAddress(IP.IntToBytes(getInterfaceAddress())), getPort()), 128);
+		socket.configureBlocking(false);
+		acceptor = Selector.open();
+		socket.register(acceptor, SelectionKey.OP_ACCEPT);
+	}
+
+	@Override
+	protected void PostRun() throws Exception {
+		if (acceptor != null) {
+			acceptor.close();
+			acceptor = null;
+		}
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+	}
+
+	/* Accept connections and hand them to the worker threads in turn */
+	@Override
+	public void Run() throws Exception {
+		workers = new Worker[Math.max(1, getThreads())];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+		try {
+			long lastidle = System.nanoTime();
+			while (!getStopping()) {
+				if (System.nanoTime() - lastidle >= IdleInterval * 1000000L) {
+					lastidle = System.nanoTime();
+					try {
+						OnIdle();
+					}
+					catch (Exception e) {
+						Log.Add(this, Log.TYPE_ERR, "Untrapped error (" + e.getClass().getSimpleName() + ") in idle handler: " + e.getMessage());
+					}
+				}
+				if (acceptor.select(IdleInterval) == 0)
+					continue;
+				acceptor.selectedKeys().clear();
+				SocketChannel channel;
+				while ((channel = socket.accept()) != null)
+					accept(channel);
+			}
+		}
+		finally {
+			for (Worker w : workers) {
+				w.wakeup();
+				w.join();
+			}
+			workers = null;
+		}
+	}
+
+	/* Set up an accepted connection */
+	private void accept(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection c = OnAccept(channel);
+			if (c == null) {
+				channel.close();
+				return;
+			}
+			c.channel = channel;
+			workers[next].add(c);
+			next = (next + 1) % workers.length;
+		}
+		catch (Exception e) {
+			Log.Add(this, Log.TYPE_ERR, "Untrapped error (" + e.getClass().getSimpleName() + ") in accept handler: " + e.getMessage());
+			try {
+				channel.close();
+			}
+			catch (IOException e2) {
+			}
+		}
+	}
+
+}
@@ -37,6 +37,16 @@ public abstract class UDPServer extends Server {
 
 	protected abstract int getInterfaceAddress();
 
+	/* Interval between calls to OnIdle (milliseconds) */
+	protected static final int IdleInterval = 100;
+
+	/*
+	 * Called from the receive thread at least every IdleInterval
+	 * milliseconds, whether or not packets are arriving, for housekeeping
+	 */
+	protected void OnIdle() throws Exception {
+	}
+
 	@Override
 	protected void PreRun() throws Exception {
 		socket = new DatagramSocket(getPort(), InetAddress.getByAddress(IP
@@ -58,7 +68,18 @@ public abstract class UDPServer extends Server {
 	public void Run() throws Exception {
 		byte[] buffer = new byte[65536];
 		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		long lastidle = System.nanoTime();
 		while (!getStopping()) {
+			if (System.nanoTime() - lastidle >= IdleInterval * 1000000L) {
+				lastidle = System.nanoTime();
+				try {
+					OnIdle();
+				} catch (Exception e) {
+					Log.Add(this, Log.TYPE_ERR, "Untrapped error ("
+							+ e.getClass().getSimpleName()
+							+ ") in idle handler: " + e.getMessage());
+				}
+			}
 			try {
 				socket.receive(packet);
 			} catch (SocketTimeoutException e) {
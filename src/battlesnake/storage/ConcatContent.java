@@ -0,0 +1,147 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import battlesnake.logging.Statistics;
+
+/*
+ * Contents made of byte ranges of other contents, one after another, such
+ * as an initrd with a per-client overlay archive appended. The offset of
+ * each range within the whole is worked out once, and the range holding
+ * an offset is found by a binary search. Reads within a range come
+ * straight from its content, only reads spanning ranges are copied.
+ */
+public class ConcatContent implements Content {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/* Bytes copied to gather reads spanning parts, counted with the other copies of DATA payload */
+	private static final Statistics.Counter BytesCopied = Statistics.Counter("tftp_data_bytes_copied");
+
+	private final String name;
+	/* Every content referenced, released with this */
+	private final Content[] contents;
+	/* The ranges which are not empty: their contents, offsets within them, and offsets within the whole */
+	private final Content[] parts;
+	private final long[] offsets;
+	private final long[] starts;
+	private final long size;
+
+	/*
+	 * The contents are the given ranges (offset and length) of the parts,
+	 * which this takes the references of
+	 */
+	public ConcatContent(String name, Content[] contents, long[] offsets, long[] lengths) {
+		this.name = name;
+		this.contents = contents;
+		int count = 0;
+		for (long length : lengths)
+			if (length > 0)
+				count++;
+		parts = new Content[count];
+		this.offsets = new long[count];
+		starts = new long[count + 1];
+		long size = 0;
+		for (int i = 0, j = 0; i < contents.length; i++)
+			if (lengths[i] > 0) {
+				parts[j] = contents[i];
+				this.offsets[j] = offsets[i];
+				starts[j++] = size;
+				size += lengths[i];
+			}
+		starts[count] = size;
+		this.size = size;
+	}
+
+	/* Index of the part holding an offset, -1 if it is at or beyond the end */
+	private int find(long offset) {
+		if (offset >= size)
+			return -1;
+		int i = Arrays.binarySearch(starts, 0, parts.length, offset);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public Content.Cursor cursor() {
+		return new Content.Cursor() {
+
+			private final Content.Cursor[] cursors = new Content.Cursor[parts.length];
+			/* Holds reads spanning parts */
+			private ByteBuffer gathered = null;
+
+			private Content.Cursor cursor(int i) {
+				if (cursors[i] == null)
+					cursors[i] = parts[i].cursor();
+				return cursors[i];
+			}
+
+			@Override
+			public ByteBuffer read(long offset, int length) throws IOException {
+				int i = find(offset);
+				if (i < 0)
+					return EMPTY;
+				long end = Math.min(offset + length, size);
+				if (end <= starts[i + 1])
+					return cursor(i).read(offsets[i] + offset - starts[i], (int) (end - offset));
+				if (gathered == null)
+					gathered = ByteBuffer.allocateDirect(65536);
+				gathered.clear();
+				for (; offset < end; i++) {
+					ByteBuffer b = cursor(i).read(offsets[i] + offset - starts[i], (int) (Math.min(end, starts[i + 1]) - offset));
+					/* The part has been truncated */
+					if (!b.hasRemaining())
+						break;
+					offset += b.remaining();
+					BytesCopied.add(b.remaining());
+					gathered.put(b);
+				}
+				gathered.flip();
+				return gathered;
+			}
+		};
+	}
+
+	@Override
+	public void load() throws IOException {
+		load(0, size);
+	}
+
+	@Override
+	public void load(long offset, long length) throws IOException {
+		long end = Math.min(offset + length, size);
+		for (int i = find(offset); i >= 0 && i < parts.length && starts[i] < end; i++) {
+			long from = Math.max(offset, starts[i]);
+			parts[i].load(offsets[i] + from - starts[i], Math.min(end, starts[i + 1]) - from);
+		}
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		int i = find(position);
+		if (i < 0)
+			return 0;
+		return parts[i].transferTo(offsets[i] + position - starts[i], Math.min(count, starts[i + 1] - position), target);
+	}
+
+	@Override
+	public void release() {
+		for (Content c : contents)
+			c.release();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder(name).append('(');
+		for (int i = 0; i < parts.length; i++)
+			s.append(i > 0 ? "+" : "").append(parts[i]).append('@').append(offsets[i]);
+		return s.append(')').toString();
+	}
+
+}
@@ -0,0 +1,46 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * The contents of a file being served, wherever they are stored. Each
+ * reference must be released when the transfer is done with it.
+ */
+public interface Content {
+
+	/* Reads from the content, each reader has its own cursor */
+	public interface Cursor {
+		/*
+		 * Get a buffer containing up to length (at most 65536) bytes from
+		 * offset, which remains valid until the next call. The buffer is
+		 * empty if offset is at or beyond the end of the content.
+		 */
+		public ByteBuffer read(long offset, int length) throws IOException;
+	}
+
+	/* Size in bytes */
+	public long getSize();
+
+	/* Create a cursor for reading the content */
+	public Cursor cursor();
+
+	/* Read the whole content into memory */
+	public void load() throws IOException;
+
+	/* Read length bytes from offset into memory */
+	public void load(long offset, long length) throws IOException;
+
+	/*
+	 * Write up to count bytes from position to a channel, without copying
+	 * them through the Java heap. Returns the number of bytes written,
+	 * which may be fewer than requested (or none) if the channel is
+	 * non-blocking.
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+	/* Release this reference to the content */
+	public void release();
+
+}
@@ -0,0 +1,88 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import battlesnake.bootserver.Configuration;
+import battlesnake.logging.Statistics;
+
+/*
+ * An in-memory cache of the contents of small, frequently read files (boot
+ * loaders, modules, menus, kernels), limited to tftp_cache_size megabytes.
+ * The least recently used files are evicted first. Contents are held in
+ * direct buffers if tftp_cache_offheap is set, so the cache does not grow
+ * the heap.
+ */
+public class ContentCache {
+
+	/* Contents, keyed by canonical path, size and modification time, in order of use */
+	private static final LinkedHashMap<String, ByteBuffer> Entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+	/* Total size of the cached contents */
+	private static long Bytes = 0;
+
+	public static final Statistics.Counter Hits = Statistics.Counter("tftp_cache_hits");
+	public static final Statistics.Counter Misses = Statistics.Counter("tftp_cache_misses");
+	public static final Statistics.Counter Evictions = Statistics.Counter("tftp_cache_evictions");
+	public static final Statistics.Counter Size = Statistics.Counter("tftp_cache_bytes");
+
+	/* Can a file of this size be cached? */
+	public static boolean Cacheable(long size) {
+		long limit = Math.min(Configuration.tftp_cache_max_file_size, Configuration.tftp_cache_size) * 1048576L;
+		return size <= limit && size <= MappedFileStore.REGION_STRIDE;
+	}
+
+	/*
+	 * Get the contents of a file, reading them into the cache if they are
+	 * not there. The returned buffer is read-only and shared, callers must
+	 * duplicate it before moving its position. A file which has become
+	 * shorter than its size is not cached, since it is being replaced.
+	 */
+	public static ByteBuffer Get(String key, FileChannel channel, long size) throws IOException {
+		synchronized (ContentCache.class) {
+			ByteBuffer b = Entries.get(key);
+			if (b != null) {
+				Hits.increment();
+				return b;
+			}
+		}
+		Misses.increment();
+		/* Read outside of the lock, so that a large file does not hold up hits on others */
+		ByteBuffer b = Configuration.tftp_cache_offheap ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+		while (b.hasRemaining())
+			if (channel.read(b, b.position()) < 0)
+				break;
+		if (b.hasRemaining())
+			throw new IOException("File shrank from " + size + " to " + b.position() + " bytes while being read");
+		b.flip();
+		b = b.asReadOnlyBuffer();
+		synchronized (ContentCache.class) {
+			/* Another session may have read the file meanwhile */
+			ByteBuffer existing = Entries.get(key);
+			if (existing != null)
+				return existing;
+			Entries.put(key, b);
+			Bytes += b.capacity();
+			Size.add(b.capacity());
+			Evict();
+		}
+		return b;
+	}
+
+	/* Evict the least recently used contents until the cache is within its budget */
+	private static void Evict() {
+		long budget = Configuration.tftp_cache_size * 1048576L;
+		Iterator<Map.Entry<String, ByteBuffer>> it = Entries.entrySet().iterator();
+		while (Bytes > budget && it.hasNext()) {
+			int length = it.next().getValue().capacity();
+			it.remove();
+			Bytes -= length;
+			Size.add(-length);
+			Evictions.increment();
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import battlesnake.logging.Log;
+import battlesnake.utils.Path;
+
+/*
+ * Watches a folder and every folder below it, telling its listeners
+ * whenever anything in them is created, deleted or modified, so that
+ * caches of what is in the folder can be cleared
+ */
+public class FolderWatcher {
+
+	/* Told of changes, on the watcher's thread */
+	public interface Listener {
+
+		public void changed();
+
+	}
+
+	private final String folder;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private WatchService watcher = null;
+
+	/* Start watching a folder */
+	public FolderWatcher(String folder) throws IOException {
+		this.folder = Path.IncludeTrailingSlash(Path.Slashify(folder));
+		final WatchService ws = FileSystems.getDefault().newWatchService();
+		try {
+			watch(ws, Paths.get(this.folder));
+		}
+		catch (IOException e) {
+			ws.close();
+			throw e;
+		}
+		watcher = ws;
+		Thread thread = new Thread("Folder watcher") {
+			@Override
+			public void run() {
+				FolderWatcher.this.run(ws);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* Property getter */
+	public String getFolder() {
+		return folder;
+	}
+
+	/* Tell a listener of changes from now on */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/* Stop watching the folder */
+	public void stop() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			}
+			catch (IOException e) {
+			}
+			watcher = null;
+		}
+	}
+
+	/* Watch a folder and every folder below it */
+	private static void watch(final WatchService ws, java.nio.file.Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<java.nio.file.Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(java.nio.file.Path dir, BasicFileAttributes attrs) throws IOException {
+				dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/* Tell the listeners whenever anything changes, watching any new folders */
+	private void run(WatchService ws) {
+		try {
+			while (true) {
+				WatchKey key = ws.take();
+				for (Listener listener : listeners)
+					listener.changed();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE)
+						continue;
+					java.nio.file.Path created = ((java.nio.file.Path) key.watchable()).resolve((java.nio.file.Path) event.context());
+					if (Files.isDirectory(created))
+						try {
+							watch(ws, created);
+						}
+						catch (IOException e) {
+							Log.Add(this, Log.TYPE_WARN, "Cannot watch " + created + " for changes: " + e.getMessage());
+						}
+				}
+				key.reset();
+			}
+		}
+		/* Stopped */
+		catch (ClosedWatchServiceException e) {
+		}
+		catch (InterruptedException e) {
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+package battlesnake.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import battlesnake.bootserver.Configuration;
+
+/*
+ * A shared store of memory-mapped files, so that every session reading the
+ * same file reads from the same mapping (and the same file descriptor)
+ * instead of opening, seeking and reading the file itself. Files small
+ * enough for the ContentCache are read from there instead of being mapped.
+ */
+public class MappedFileStore {
+
+	/*
+	 * Files are mapped in regions of REGION_STRIDE bytes. Each region
+	 * overlaps the next by REGION_OVERLAP bytes, so any read of up to
+	 * REGION_OVERLAP bytes lies entirely within a single region (the
+	 * largest TFTP block is 65464 bytes)
+	 */
+	public static final long REGION_STRIDE = 64L * 1024 * 1024;
+	public static final int REGION_OVERLAP = 65536;
+
+	/* Mappings, keyed by canonical path and version */
+	private static final Map<String, Mapping> Mappings = new HashMap<String, Mapping>();
+
+	/*
+	 * Get a mapping of a file like Acquire, but return null if there is no
+	 * such file rather than failing to open it
+	 */
+	public static Mapping Lookup(String filename) throws IOException {
+		if (!new File(filename).isFile())
+			return null;
+		return Acquire(filename);
+	}
+
+	/*
+	 * Get a mapping of a file, the caller must release the mapping when it
+	 * is done with it
+	 */
+	public static synchronized Mapping Acquire(String filename) throws IOException {
+		File f = new File(filename);
+		String path = f.getCanonicalPath();
+		String key = path + "\0" + Version(f);
+		Mapping m = Mappings.get(key);
+		if (m == null) {
+			m = new Mapping(key, new RandomAccessFile(path, "r"));
+			Mappings.put(key, m);
+		}
+		m.refs++;
+		return m;
+	}
+
+	/*
+	 * A token which changes whenever a file is changed or replaced: its
+	 * size, modification time and (where the file system has them) inode,
+	 * so that a file replaced by one of the same size and modification
+	 * time is still told apart
+	 */
+	public static String Version(File f) {
+		Object inode = null;
+		try {
+			inode = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+		}
+		catch (IOException e) {
+		}
+		return f.length() + "\0" + f.lastModified() + "\0" + inode;
+	}
+
+	/*
+	 * Unmap files that no session has referenced for
+	 * tftp_mapping_idle_timeout seconds
+	 */
+	public static synchronized void Prune() {
+		long now = System.nanoTime();
+		long timeout = Configuration.tftp_mapping_idle_timeout * 1000000000L;
+		Iterator<Mapping> it = Mappings.values().iterator();
+		while (it.hasNext()) {
+			Mapping m = it.next();
+			if (m.refs == 0 && now - m.idlesince >= timeout) {
+				m.close();
+				it.remove();
+			}
+		}
+	}
+
+	/* Number of files currently mapped */
+	public static synchronized int Count() {
+		return Mappings.size();
+	}
+
+	/* Add a reference to a mapping */
+	private static synchronized void Retain(Mapping m) {
+		m.refs++;
+	}
+
+	/* Release a reference to a mapping */
+	private static synchronized void Release(Mapping m) {
+		if (m.refs > 0 && --m.refs == 0)
+			m.idlesince = System.nanoTime();
+	}
+
+	/* A reference-counted mapping of one version of a file */
+	public static class Mapping implements Content {
+
+		private final String key;
+		private final RandomAccessFile file;
+		private final long size;
+		private final ByteBuffer[] regions;
+		/* Reference count and time at which it dropped to zero */
+		private int refs = 0;
+		private long idlesince = 0;
+
+		private Mapping(String key, RandomAccessFile file) throws IOException {
+			this.key = key;
+			this.file = file;
+			this.size = file.length();
+			this.regions = new ByteBuffer[(int) ((size + REGION_STRIDE - 1) / REGION_STRIDE)];
+		}
+
+		/* Property getter */
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		/* Create a cursor for reading from the mapping */
+		@Override
+		public MappedFileStore.Cursor cursor() {
+			return new MappedFileStore.Cursor(this, 0, size);
+		}
+
+		/* Create a cursor for reading part of the mapping, as if it were a file */
+		public MappedFileStore.Cursor cursor(long base, long length) {
+			return new MappedFileStore.Cursor(this, base, length);
+		}
+
+		/* Add a reference to the mapping */
+		public void retain() {
+			Retain(this);
+		}
+
+		/*
+		 * Read the whole file into memory, into the content cache or by
+		 * faulting in every page of the mapping
+		 */
+		@Override
+		public void load() throws IOException {
+			for (int i = 0; i < regions.length; i++) {
+				ByteBuffer region = region(i);
+				if (region instanceof MappedByteBuffer)
+					((MappedByteBuffer) region).load();
+			}
+		}
+
+		/* Read part of the file into memory, by touching every page of it */
+		@Override
+		public void load(long base, long length) throws IOException {
+			MappedFileStore.Cursor c = cursor(base, length);
+			for (long offset = 0; offset < length; offset += 4096) {
+				ByteBuffer b = c.read(offset, 1);
+				if (b.hasRemaining())
+					b.get(b.position());
+			}
+		}
+
+		/* Send part of the file straight from the file descriptor */
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			if (position >= size)
+				return 0;
+			return file.getChannel().transferTo(position, Math.min(count, size - position), target);
+		}
+
+		/* Release this reference to the mapping */
+		@Override
+		public void release() {
+			Release(this);
+		}
+
+		/*
+		 * Get a region, mapping it if it has not been mapped yet. A file
+		 * in the content cache is a single region, which is looked up for
+		 * each cursor so that the cache sees every use of the file.
+		 */
+		private synchronized ByteBuffer region(int index) throws IOException {
+			if (ContentCache.Cacheable(size))
+				return ContentCache.Get(key, file.getChannel(), size);
+			if (regions[index] == null) {
+				long base = index * REGION_STRIDE;
+				long length = Math.min(REGION_STRIDE + REGION_OVERLAP, size - base);
+				regions[index] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, base, length);
+			}
+			return regions[index];
+		}
+
+		/*
+		 * Close the file, the regions remain valid until they are
+		 * garbage collected
+		 */
+		private void close() {
+			try {
+				file.close();
+			}
+			catch (IOException e) {
+			}
+		}
+
+		@Override
+		public String toString() {
+			return key.substring(0, key.indexOf('\0'));
+		}
+	}
+
+	/*
+	 * Reads from a mapping, or from part of one. Each cursor keeps its own
+	 * view of the current region, so reading a block only moves the view's
+	 * position and limit
+	 */
+	public static class Cursor implements Content.Cursor {
+
+		private final Mapping mapping;
+		/* Part of the mapping being read */
+		private final long base;
+		private final long size;
+		private ByteBuffer view = ByteBuffer.allocate(0);
+		private int viewregion = -1;
+		/* End of the region's data, which a region read into memory from a file that shrank has short of its capacity */
+		private int viewlimit = 0;
+
+		private Cursor(Mapping mapping, long base, long size) {
+			this.mapping = mapping;
+			this.base = base;
+			this.size = size;
+		}
+
+		@Override
+		public ByteBuffer read(long offset, int length) throws IOException {
+			if (length > REGION_OVERLAP)
+				throw new IOException("Cannot read " + length + " bytes from a mapped file at once");
+			if (offset >= size) {
+				view.limit(view.position());
+				return view;
+			}
+			length = (int) Math.min(length, size - offset);
+			offset += base;
+			int index = (int) (offset / REGION_STRIDE);
+			if (index != viewregion) {
+				view = mapping.region(index).duplicate();
+				viewregion = index;
+				viewlimit = view.limit();
+			}
+			int pos = (int) Math.min(offset - index * REGION_STRIDE, viewlimit);
+			view.limit(Math.min(pos + length, viewlimit));
+			view.position(pos);
+			return view;
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/* Contents held in memory, such as a file rendered from a template */
+public class MemoryContent implements Content {
+
+	private final ByteBuffer buffer;
+	private final String name;
+
+	/* The contents are the remaining bytes of the buffer, which must not change */
+	public MemoryContent(ByteBuffer buffer, String name) {
+		this.buffer = buffer.slice().asReadOnlyBuffer();
+		this.name = name;
+	}
+
+	@Override
+	public long getSize() {
+		return buffer.capacity();
+	}
+
+	@Override
+	public Content.Cursor cursor() {
+		return new Content.Cursor() {
+
+			private final ByteBuffer view = buffer.duplicate();
+
+			@Override
+			public ByteBuffer read(long offset, int length) throws IOException {
+				int start = (int) Math.min(offset, view.capacity());
+				view.limit(view.capacity());
+				view.position(start);
+				view.limit((int) Math.min((long) start + length, view.capacity()));
+				return view;
+			}
+		};
+	}
+
+	@Override
+	public void load() {
+	}
+
+	@Override
+	public void load(long offset, long length) {
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		if (position >= buffer.capacity())
+			return 0;
+		ByteBuffer b = buffer.duplicate();
+		b.position((int) position);
+		b.limit((int) Math.min(position + count, buffer.capacity()));
+		return target.write(b);
+	}
+
+	@Override
+	public void release() {
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
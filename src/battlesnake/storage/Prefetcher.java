@@ -0,0 +1,218 @@
+package battlesnake.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import battlesnake.logging.Statistics;
+import battlesnake.utils.ConcurrentLongMap;
+import battlesnake.utils.Path;
+
+/*
+ * Learns the order in which booting clients request files (e.g. pxelinux.0,
+ * ldlinux.c32, vmlinuz, initrd.img) and loads the files a client is likely
+ * to request next into memory before it asks for them. A boot is the files
+ * a client requests from its first file (the boot profile, e.g. a BIOS or
+ * a UEFI bootloader) on, and the transitions from each file to the next are
+ * counted per boot profile. When most boots went from the file a client
+ * has just requested to the same next file, that file is loaded, and so on
+ * for up to Depth files ahead.
+ */
+public class Prefetcher {
+
+	/* Files to predict ahead, and the share of transitions a prediction needs */
+	private static final int Depth = 2;
+	private static final double Likely = 0.5;
+	/* Transitions from a file seen before it is used for predictions */
+	private static final int MinSeen = 2;
+	/* Most files learned, and next files counted for each */
+	private static final int MaxStates = 4096;
+	private static final int MaxNext = 32;
+	/* Seconds after which a client's requests are a new boot, and a file loaded may be loaded again */
+	private static final int BootTimeout = 600;
+	private static final int LoadInterval = 60;
+
+	public static final Statistics.Counter Prefetches = Statistics.Counter("tftp_prefetches");
+	public static final Statistics.Counter PrefetchBytes = Statistics.Counter("tftp_prefetch_bytes");
+	public static final Statistics.Counter Hits = Statistics.Counter("tftp_prefetch_hits");
+	public static final Statistics.Counter Misses = Statistics.Counter("tftp_prefetch_misses");
+
+	private final Root root;
+	/* Transitions from each file of each boot profile, keyed by profile and file */
+	private final Map<String, State> states = new HashMap<String, State>();
+	/* Boots in progress, keyed by client address */
+	private final ConcurrentLongMap<Boot> boots = new ConcurrentLongMap<Boot>();
+	/* Files loaded recently, and when (System.nanoTime) */
+	private final Map<String, Long> loaded = new HashMap<String, Long>();
+	/* Loads the files predicted */
+	private ExecutorService loader = null;
+
+	/* The files requested after a file, and how many times each was */
+	private static class State {
+
+		private int total = 0;
+		private final Map<String, Integer> next = new HashMap<String, Integer>();
+
+		/* The most likely next file, or null if there is no likely one */
+		private String predict() {
+			if (total < MinSeen)
+				return null;
+			String best = null;
+			int count = 0;
+			for (Map.Entry<String, Integer> e : next.entrySet())
+				if (e.getValue() > count) {
+					best = e.getKey();
+					count = e.getValue();
+				}
+			return count >= total * Likely ? best : null;
+		}
+	}
+
+	/* A client's boot in progress */
+	private static class Boot {
+
+		private final long ip;
+		private final String profile;
+		private String last;
+		/* Time of the last request (System.nanoTime) */
+		private long time;
+		/* Files predicted for the client */
+		private final Set<String> predicted = new HashSet<String>();
+
+		public Boot(long ip, String profile, long time) {
+			this.ip = ip;
+			this.profile = profile;
+			this.last = profile;
+			this.time = time;
+		}
+	}
+
+	public Prefetcher(Root root) {
+		this.root = root;
+	}
+
+	/*
+	 * A client has opened a file: learn the transition to it from the
+	 * client's last file, and load the files likely to follow it
+	 */
+	public void request(int remoteIP, String filename) {
+		filename = Path.ParseDots(Path.Slashify(filename), false, false);
+		long ip = remoteIP & 0xffffffffL;
+		long now = System.nanoTime();
+		List<String> files = new ArrayList<String>();
+		synchronized (this) {
+			Boot boot = boots.get(ip);
+			/* Requesting the first file again starts a new boot */
+			if (boot == null || now - boot.time > BootTimeout * 1000000000L || filename.equals(boot.profile)) {
+				boot = new Boot(ip, filename, now);
+				boots.put(ip, boot);
+			}
+			else if (!filename.equals(boot.last)) {
+				if (!boot.predicted.isEmpty()) {
+					if (boot.predicted.contains(filename))
+						Hits.increment();
+					else
+						Misses.increment();
+				}
+				learn(boot.profile, boot.last, filename);
+				boot.last = filename;
+			}
+			boot.time = now;
+			String file = boot.last;
+			for (int i = 0; i < Depth; i++) {
+				State s = states.get(boot.profile + "\0" + file);
+				if (s == null || (file = s.predict()) == null)
+					break;
+				if (boot.predicted.add(file)) {
+					Long t = loaded.get(file);
+					if (t == null || now - t > LoadInterval * 1000000000L) {
+						loaded.put(file, now);
+						files.add(file);
+					}
+				}
+			}
+		}
+		for (String file : files)
+			load(file);
+	}
+
+	/* Count a transition from one file to the next in a boot profile */
+	private void learn(String profile, String from, String to) {
+		String key = profile + "\0" + from;
+		State s = states.get(key);
+		if (s == null) {
+			if (states.size() >= MaxStates)
+				return;
+			states.put(key, s = new State());
+		}
+		Integer count = s.next.get(to);
+		if (count == null && s.next.size() >= MaxNext)
+			return;
+		s.next.put(to, count == null ? 1 : count + 1);
+		s.total++;
+	}
+
+	/* Load a file into memory, in the background */
+	private void load(final String filename) {
+		Loader().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Content content = root.open(filename);
+					try {
+						content.load();
+						Prefetches.increment();
+						PrefetchBytes.add(content.getSize());
+					}
+					finally {
+						content.release();
+					}
+				}
+				/* The file has gone, the client will find that out itself */
+				catch (Exception e) {
+				}
+			}
+		});
+	}
+
+	/* Forget finished boots and when files were loaded */
+	public synchronized void prune() {
+		long now = System.nanoTime();
+		for (Boot boot : boots.values())
+			if (now - boot.time > BootTimeout * 1000000000L)
+				boots.remove(boot.ip, boot);
+		for (Iterator<Long> i = loaded.values().iterator(); i.hasNext();)
+			if (now - i.next() > LoadInterval * 1000000000L)
+				i.remove();
+	}
+
+	/* Get the loader thread, starting it if need be */
+	private synchronized ExecutorService Loader() {
+		if (loader == null)
+			loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TFTP prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return loader;
+	}
+
+	/* Stop loading files */
+	public synchronized void stop() {
+		if (loader != null) {
+			loader.shutdownNow();
+			loader = null;
+		}
+	}
+
+}
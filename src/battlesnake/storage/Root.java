@@ -0,0 +1,290 @@
+package battlesnake.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import battlesnake.logging.Log;
+import battlesnake.logging.Statistics;
+import battlesnake.utils.Path;
+
+/*
+ * The files being served, shared by the TFTP and HTTP servers: either a
+ * root folder (optionally with the Windows symlink hack) or a root image
+ * which is swapped for a new one when the image file is replaced
+ */
+public class Root {
+
+	/* Log symbolic link traversals (Windows symlink hack only) */
+	private static boolean LogSymlinks = false;
+	/* Most paths remembered as missing, they are forgotten when there are more */
+	private static final int MAX_MISSING = 4096;
+
+	private static final Statistics.Counter MissingHits = Statistics.Counter("tftp_negative_cache_hits");
+
+	private final String folder;
+	/* Resolves paths for the Windows symlink hack */
+	private SymlinkResolver symlinks = null;
+	/* Watches the root folder for changes (null if it cannot be) */
+	private FolderWatcher watcher = null;
+	/*
+	 * Requested paths with no file in the root folder, cleared whenever
+	 * anything in it changes (null if it cannot be watched), and a count
+	 * of the changes, so that a lookup which raced with a change is not
+	 * remembered
+	 */
+	private volatile Set<String> missing = null;
+	private volatile int generation = 0;
+	/* Image that files are served from instead of the root folder (if any) */
+	private volatile RootImage image = null;
+	/*
+	 * Time of the last check for a replaced image, and the version of a
+	 * replacement that could not be opened, so that the failure is logged
+	 * once while opening it is retried
+	 */
+	private long imagechecked = 0;
+	private String imagefailed = null;
+	/* Templates for files rendered per client (null for none) */
+	private Templates templates = null;
+	/* Files made of other files (null for none) */
+	private VirtualFiles virtualfiles = null;
+
+	/*
+	 * Serve a root folder, or a root image instead if imagefile is not
+	 * empty, with files rendered per client from the templates of
+	 * Templates(templates), and the files of VirtualFiles(virtualfiles)
+	 */
+	public Root(String folder, String imagefile, boolean symlinkhack, String templates, String virtualfiles) throws IOException {
+		this.folder = Path.IncludeTrailingSlash(Path.Slashify(folder));
+		this.templates = new Templates(templates);
+		if (this.templates.isEmpty())
+			this.templates = null;
+		this.virtualfiles = new VirtualFiles(virtualfiles);
+		if (this.virtualfiles.isEmpty())
+			this.virtualfiles = null;
+		if (imagefile.length() > 0) {
+			image = RootImage.Open(imagefile);
+			Log.Add(this, Log.TYPE_INFO, "Serving " + image.getCount() + " files from " + image.getFilename());
+			return;
+		}
+		try {
+			watcher = new FolderWatcher(this.folder);
+			final Set<String> set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			watcher.addListener(new FolderWatcher.Listener() {
+				@Override
+				public void changed() {
+					generation++;
+					set.clear();
+				}
+			});
+			missing = set;
+		}
+		/* Without a watcher, every path is looked up in the root folder */
+		catch (IOException e) {
+			Log.Add(this, Log.TYPE_WARN, "Cannot watch " + this.folder + " for changes, paths will not be cached: " + e.getMessage());
+		}
+		if (symlinkhack)
+			symlinks = new SymlinkResolver(folder, watcher);
+	}
+
+	/* Property getter */
+	public String getFolder() {
+		return folder;
+	}
+
+	/* Is there a root image? */
+	public boolean isImage() {
+		return image != null;
+	}
+
+	/*
+	 * Open a requested file, from the root image if there is one,
+	 * otherwise from the root folder
+	 */
+	public Content open(String filename) throws IOException {
+		Content c = lookup(filename);
+		if (c == null)
+			throw new FileNotFoundException(filename + " (No such file)");
+		return c;
+	}
+
+	/*
+	 * Open a requested file like open(), but return null if there is no
+	 * such file. Paths with no file in the root folder are remembered
+	 * until it changes, so a client probing for files that do not exist
+	 * (e.g. PXELINUX looking for its configuration) costs one lookup per
+	 * probe, and no exceptions.
+	 */
+	public Content lookup(String filename) throws IOException {
+		filename = Path.ParseDots(Path.Slashify(filename), false, false);
+		RootImage current = image;
+		if (current != null) {
+			try {
+				return current.lookup(filename);
+			}
+			/* The image was replaced just now, try the new one */
+			catch (IOException e) {
+				return image.lookup(filename);
+			}
+		}
+		Set<String> missing = this.missing;
+		if (missing != null && missing.contains(filename)) {
+			MissingHits.increment();
+			return null;
+		}
+		int gen = generation;
+		Content c = MappedFileStore.Lookup(folder + resolve(filename));
+		if (c == null && missing != null && gen == generation) {
+			if (missing.size() >= MAX_MISSING)
+				missing.clear();
+			missing.add(filename);
+		}
+		return c;
+	}
+
+	/*
+	 * Open a requested file for a client with the given attributes: a
+	 * virtual file is made of its parts for the client, a file that exists
+	 * is served as it is, otherwise a path matching a template is rendered
+	 * for the client
+	 */
+	public Content open(String filename, Map<String, String> client) throws IOException {
+		Content c = lookup(filename, client);
+		if (c == null)
+			throw new FileNotFoundException(filename + " (No such file)");
+		return c;
+	}
+
+	/* Open a requested file for a client like open(), but return null if there is no such file */
+	public Content lookup(String filename, Map<String, String> client) throws IOException {
+		Content c = null;
+		if (virtualfiles != null)
+			c = virtualfiles.open(this, Path.ParseDots(Path.Slashify(filename), false, false), client);
+		if (c == null)
+			c = lookup(filename);
+		if (c == null && templates != null)
+			c = templates.render(this, Path.ParseDots(Path.Slashify(filename), false, false), client);
+		return c;
+	}
+
+	/*
+	 * A token which changes whenever the file with this path changes, or
+	 * null if there is no such file
+	 */
+	public String version(String filename) {
+		RootImage current = image;
+		if (current != null)
+			return current.exists(Path.ParseDots(Path.Slashify(filename), false, false)) ? Long.toHexString(current.getId()) : null;
+		try {
+			File f = new File(folder + resolve(filename));
+			return f.isFile() ? MappedFileStore.Version(f) : null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/* Is there a file with this path? */
+	public boolean exists(String filename) {
+		RootImage current = image;
+		if (current != null)
+			return current.exists(Path.ParseDots(Path.Slashify(filename), false, false));
+		try {
+			return new File(folder + resolve(filename)).isFile();
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/* The relative paths of all the files */
+	public List<String> list() throws IOException {
+		RootImage current = image;
+		final List<String> files = new ArrayList<String>();
+		if (current != null) {
+			for (String name : current.list())
+				files.add(Path.Slashify(name));
+		}
+		else if (new File(folder).isDirectory())
+			Files.walkFileTree(Paths.get(folder), new SimpleFileVisitor<java.nio.file.Path>() {
+				@Override
+				public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile())
+						files.add(Paths.get(folder).relativize(file).toString());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		return files;
+	}
+
+	/* Get the path of a requested file, relative to the root folder */
+	private String resolve(String filename) throws IOException {
+		/* Get target */
+		String targetPath = Path.ParseDots(Path.Slashify(filename), false, false);
+		/* Window symlink hack */
+		if (symlinks != null) {
+			String followedPath = symlinks.resolve(targetPath);
+			if (LogSymlinks && !followedPath.equals(targetPath))
+				Log.Add(this, Log.TYPE_INFO, "Followed symlink from \"" + targetPath + "\" to \"" + followedPath + "\".");
+			targetPath = followedPath;
+		}
+		return targetPath;
+	}
+
+	/*
+	 * Switch to the new root image if the image file has been replaced,
+	 * transfers from the old image continue from it. Checks at most once
+	 * a second, so the servers can call it whenever they are idle.
+	 */
+	public synchronized void refresh() {
+		RootImage current = image;
+		long now = System.nanoTime();
+		if (current == null || now - imagechecked < 1000000000L)
+			return;
+		imagechecked = now;
+		if (!current.isReplaced())
+			return;
+		try {
+			image = RootImage.Open(current.getFilename());
+			current.close();
+			imagefailed = null;
+			Log.Add(this, Log.TYPE_INFO, "Serving " + image.getCount() + " files from replaced " + image.getFilename());
+		}
+		/* It may still be being written, try again at the next check */
+		catch (IOException e) {
+			String version = MappedFileStore.Version(new File(current.getFilename()));
+			if (!version.equals(imagefailed))
+				Log.Add(this, Log.TYPE_ERR, "Cannot open replaced root image: " + e.getMessage());
+			imagefailed = version;
+		}
+	}
+
+	/* Stop watching the root folder and release the image */
+	public synchronized void close() {
+		if (symlinks != null) {
+			symlinks.stop();
+			symlinks = null;
+		}
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+		missing = null;
+		if (image != null) {
+			image.close();
+			image = null;
+		}
+	}
+
+}
@@ -0,0 +1,373 @@
+package battlesnake.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * A TFTP root folder packed into one immutable, memory-mapped image file,
+ * so serving a file needs no path resolution or file system calls.
+ *
+ * Image layout (big-endian):
+ * - Header: magic "BSROOTIM", version, file count, image ID, offset of
+ *   the names, offset of the first file
+ * - Index: one entry per file, sorted by name, each holding the offset
+ *   and length of its name and the offset and length of its contents
+ * - Names: the relative paths of the files in UTF-8, with "/" separators
+ * - Contents: each file, starting on a page boundary
+ *
+ * Images are replaced by renaming a new image over the old one, sessions
+ * still reading the old one keep it mapped until they end.
+ */
+public class RootImage {
+
+	private static final byte[] MAGIC = "BSROOTIM".getBytes(Charset.forName("US-ASCII"));
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int ENTRY_SIZE = 24;
+	private static final int PAGE_SIZE = 4096;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String filename;
+	/* Version of the image file when it was opened (see MappedFileStore.Version) */
+	private final String version;
+	/* The header, index and names */
+	private final ByteBuffer index;
+	private final int count;
+	private final long names;
+	/* Random ID of the image, different for every image packed */
+	private final long id;
+	/* The whole image, for reading file contents */
+	private final MappedFileStore.Mapping mapping;
+	private boolean closed = false;
+
+	/* A file in the image */
+	private static class Entry implements Content {
+
+		private final MappedFileStore.Mapping mapping;
+		private final String name;
+		private final long offset;
+		private final long size;
+
+		public Entry(MappedFileStore.Mapping mapping, String name, long offset, long size) {
+			this.mapping = mapping;
+			this.name = name;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public Content.Cursor cursor() {
+			return mapping.cursor(offset, size);
+		}
+
+		@Override
+		public void load() throws IOException {
+			mapping.load(offset, size);
+		}
+
+		@Override
+		public void load(long position, long length) throws IOException {
+			if (position < size)
+				mapping.load(offset + position, Math.min(length, size - position));
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			if (position >= size)
+				return 0;
+			return mapping.transferTo(offset + position, Math.min(count, size - position), target);
+		}
+
+		@Override
+		public void release() {
+			mapping.release();
+		}
+
+		@Override
+		public String toString() {
+			return mapping + File.separator + name;
+		}
+	}
+
+	/* Open an image */
+	public static RootImage Open(String filename) throws IOException {
+		String version = MappedFileStore.Version(new File(filename));
+		MappedFileStore.Mapping mapping = MappedFileStore.Acquire(filename);
+		try {
+			return new RootImage(filename, version, mapping);
+		}
+		catch (IOException e) {
+			mapping.release();
+			throw e;
+		}
+	}
+
+	private RootImage(String filename, String version, MappedFileStore.Mapping mapping) throws IOException {
+		this.filename = filename;
+		this.version = version;
+		this.mapping = mapping;
+		/* Check the header */
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(mapping.cursor().read(0, HEADER_SIZE));
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		if (header.remaining() < HEADER_SIZE)
+			throw new IOException(filename + " is not a root image");
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException(filename + " is not a root image");
+		if (header.getInt() != VERSION)
+			throw new IOException(filename + " is a root image of an unsupported version");
+		count = header.getInt();
+		id = header.getLong();
+		names = header.getLong();
+		long data = header.getLong();
+		/*
+		 * Map the index separately, it may be larger than a mapped file
+		 * can read at once. The image may have been replaced since it
+		 * was mapped, so check that this is the same image.
+		 */
+		RandomAccessFile f = new RandomAccessFile(filename, "r");
+		try {
+			index = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, data);
+		}
+		finally {
+			f.close();
+		}
+		if (index.getLong(MAGIC.length + 8) != id)
+			throw new IOException(filename + " was replaced while it was being opened");
+	}
+
+	/* Property getter */
+	public String getFilename() {
+		return filename;
+	}
+
+	/* Property getter */
+	public long getId() {
+		return id;
+	}
+
+	/* Number of files in the image */
+	public int getCount() {
+		return count;
+	}
+
+	/* Has the image file been replaced since it was opened? */
+	public boolean isReplaced() {
+		return !MappedFileStore.Version(new File(filename)).equals(version);
+	}
+
+	/* Release the image, files opened from it remain readable */
+	public synchronized void close() {
+		if (!closed)
+			mapping.release();
+		closed = true;
+	}
+
+	/* Get the name of the i'th file */
+	private String name(int i) {
+		int entry = HEADER_SIZE + i * ENTRY_SIZE;
+		byte[] b = new byte[index.getInt(entry + 4)];
+		for (int j = 0; j < b.length; j++)
+			b[j] = index.get((int) (names + index.getInt(entry) + j));
+		return new String(b, UTF8);
+	}
+
+	/* Compare a name with the i'th file's name, as unsigned bytes */
+	private int compare(byte[] name, int i) {
+		int entry = HEADER_SIZE + i * ENTRY_SIZE;
+		int start = (int) (names + index.getInt(entry));
+		int length = index.getInt(entry + 4);
+		for (int j = 0; j < name.length && j < length; j++) {
+			int d = (name[j] & 0xff) - (index.get(start + j) & 0xff);
+			if (d != 0)
+				return d;
+		}
+		return name.length - length;
+	}
+
+	/* Find a file by binary search of the index, returns -1 if there is none */
+	private int find(String path) {
+		byte[] name = Path(path).getBytes(UTF8);
+		int lo = 0, hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(name, mid);
+			if (c == 0)
+				return mid;
+			else if (c < 0)
+				hi = mid - 1;
+			else
+				lo = mid + 1;
+		}
+		return -1;
+	}
+
+	/* Is there a file with this relative path in the image? */
+	public boolean exists(String path) {
+		return find(path) >= 0;
+	}
+
+	/* Open a file by its relative path */
+	public Content open(String path) throws IOException {
+		Content c = lookup(path);
+		if (c == null)
+			throw new FileNotFoundException(path + " (No such file in root image)");
+		return c;
+	}
+
+	/* Open a file by its relative path, returns null if there is no such file */
+	public synchronized Content lookup(String path) throws IOException {
+		if (closed)
+			throw new IOException(filename + " has been replaced");
+		int i = find(path);
+		if (i < 0)
+			return null;
+		int entry = HEADER_SIZE + i * ENTRY_SIZE;
+		mapping.retain();
+		return new Entry(mapping, Path(path), index.getLong(entry + 8), index.getLong(entry + 16));
+	}
+
+	/* The relative paths of all the files in the image */
+	public List<String> list() {
+		List<String> list = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			list.add(name(i));
+		return list;
+	}
+
+	/* Convert a relative path to the form used in the index */
+	private static String Path(String path) {
+		path = path.replace('\\', '/');
+		while (path.startsWith("/"))
+			path = path.substring(1);
+		return path;
+	}
+
+	/*
+	 * Pack the files under a folder into an image. The image is written
+	 * to a temporary file which then replaces the image, so a server
+	 * never sees a partly written image.
+	 */
+	public static int Pack(String folder, String filename) throws IOException {
+		final java.nio.file.Path root = Paths.get(folder).toAbsolutePath();
+		/* Find the files, sorted by name as unsigned bytes */
+		final List<byte[]> files = new ArrayList<byte[]>();
+		Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<java.nio.file.Path>() {
+			@Override
+			public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile())
+					files.add(Path(root.relativize(file).toString()).getBytes(UTF8));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				for (int i = 0; i < a.length && i < b.length; i++)
+					if (a[i] != b[i])
+						return (a[i] & 0xff) - (b[i] & 0xff);
+				return a.length - b.length;
+			}
+		});
+		/* Lay out the image */
+		long names = HEADER_SIZE + (long) files.size() * ENTRY_SIZE;
+		long data = names;
+		for (byte[] name : files)
+			data += name.length;
+		data = Align(data);
+		File temp = new File(filename + ".tmp");
+		RandomAccessFile image = new RandomAccessFile(temp, "rw");
+		boolean packed = false;
+		try {
+			image.setLength(0);
+			FileChannel out = image.getChannel();
+			ByteBuffer index = ByteBuffer.allocate((int) (data - HEADER_SIZE));
+			int nameoffset = 0;
+			long offset = data;
+			for (byte[] name : files) {
+				File f = new File(root.toFile(), new String(name, UTF8));
+				FileInputStream in = new FileInputStream(f);
+				long size;
+				try {
+					/* Copy the contents */
+					FileChannel src = in.getChannel();
+					size = src.size();
+					out.position(offset);
+					for (long done = 0; done < size;) {
+						long n = src.transferTo(done, size - done, out);
+						/* The file shrank since its size was taken */
+						if (n <= 0)
+							throw new IOException(f + " changed while it was being packed");
+						done += n;
+					}
+				}
+				finally {
+					in.close();
+				}
+				index.putInt(nameoffset);
+				index.putInt(name.length);
+				index.putLong(offset);
+				index.putLong(size);
+				nameoffset += name.length;
+				offset = Align(offset + size);
+			}
+			for (byte[] name : files)
+				index.put(name);
+			index.clear();
+			out.write(index, HEADER_SIZE);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(files.size());
+			header.putLong(new Random().nextLong());
+			header.putLong(names);
+			header.putLong(data);
+			header.flip();
+			out.write(header, 0);
+			out.force(true);
+			packed = true;
+		}
+		/* Leave no partial image behind */
+		finally {
+			image.close();
+			if (!packed)
+				temp.delete();
+		}
+		Files.move(temp.toPath(), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return files.size();
+	}
+
+	/* Round an offset up to a page boundary */
+	private static long Align(long offset) {
+		return (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+}
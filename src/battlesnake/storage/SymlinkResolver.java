@@ -0,0 +1,136 @@
+package battlesnake.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+
+import battlesnake.utils.Path;
+
+/*
+ * Resolves paths under a root folder, following the text files that stand
+ * in for symbolic links on Windows (see tftp_windows_symlink_hack). A link
+ * may point to a file or a folder, and links may point to other links.
+ *
+ * Resolved paths are cached, and the cache is cleared whenever anything
+ * under the root folder changes, so a repeated request costs one lookup.
+ */
+public class SymlinkResolver {
+
+	/* Maximum number of links followed while resolving one path */
+	private static final int MAX_LINKS = 16;
+	/* Maximum number of cached paths, the cache is cleared when it is full */
+	private static final int MAX_ENTRIES = 4096;
+	/* Links are short text files */
+	private static final int MAX_LINK_SIZE = 200;
+
+	private final String root;
+	/* Resolved paths, by requested path */
+	private final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<String, String>();
+	/* Incremented on every change, so a resolution that raced with a change is not cached */
+	private volatile int generation = 0;
+	/* Paths are only cached while changes to the root folder are being watched */
+	private volatile boolean watched = false;
+
+	/*
+	 * Create a resolver for a root folder, given the watcher of the folder
+	 * (null if it cannot be watched, in which case every path is resolved
+	 * from scratch)
+	 */
+	public SymlinkResolver(String root, FolderWatcher watcher) {
+		this.root = Path.IncludeTrailingSlash(Path.Slashify(root));
+		if (watcher != null) {
+			watcher.addListener(new FolderWatcher.Listener() {
+				@Override
+				public void changed() {
+					generation++;
+					cache.clear();
+				}
+			});
+			watched = true;
+		}
+	}
+
+	/* Stop caching paths */
+	public void stop() {
+		watched = false;
+		cache.clear();
+	}
+
+	/* Property getter */
+	public String getRoot() {
+		return root;
+	}
+
+	/*
+	 * Resolve a path relative to the root folder (without dots), returns
+	 * the path relative to the root folder with all links followed
+	 */
+	public String resolve(String rel) throws IOException {
+		String resolved = cache.get(rel);
+		if (resolved != null)
+			return resolved;
+		int gen = generation;
+		resolved = follow(rel, false, 0);
+		if (watched && gen == generation) {
+			if (cache.size() >= MAX_ENTRIES)
+				cache.clear();
+			cache.put(rel, resolved);
+		}
+		return resolved;
+	}
+
+	/*
+	 * Rebuild a path one element at a time, following each element that
+	 * is a link. A link is only followed if its target exists and is a
+	 * folder (for elements followed by more of the path) or a file (for
+	 * the last element, unless the path itself is wanted as a folder),
+	 * otherwise it is treated as an ordinary file.
+	 */
+	private String follow(String rel, boolean folder, int links) throws IOException {
+		String[] parts = Path.SplitPath(rel);
+		String path = "";
+		for (int i = 0; i < parts.length; i++) {
+			String next = path.length() == 0 ? parts[i] : path + File.separator + parts[i];
+			File f = new File(root + next);
+			if (links < MAX_LINKS && f.isFile()) {
+				String target = readLink(f);
+				if (target != null) {
+					boolean wantfolder = folder || i < parts.length - 1;
+					/* Links are relative to the folder containing them */
+					String linked = follow(Path.ParseDots(Path.IncludeTrailingSlash(path) + target, false, false), wantfolder, links + 1);
+					File t = new File(root + linked);
+					if (wantfolder ? t.isDirectory() : t.isFile()) {
+						path = linked;
+						continue;
+					}
+				}
+			}
+			path = next;
+		}
+		return path;
+	}
+
+	/*
+	 * Read the target of a link, returns null if the file does not look
+	 * like a link (it is empty, too large, or not printable ASCII)
+	 */
+	private static String readLink(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			long length = file.length();
+			if (length == 0 || length >= MAX_LINK_SIZE)
+				return null;
+			byte[] t = new byte[(int) length];
+			file.readFully(t);
+			for (byte b : t)
+				if (b < 32)
+					return null;
+			return Path.Slashify(new String(t, "US-ASCII"));
+		}
+		finally {
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import battlesnake.logging.Statistics;
+
+/*
+ * Files rendered for each client from a template, so that per-client paths
+ * (e.g. pxelinux.cfg/01-<mac>) need no file on disk for every client. Each
+ * template is a file in the root, used for requested paths matching a glob
+ * pattern. "${name}" in a template is replaced with the client's attribute
+ * of that name, and is left as it is if the client has no such attribute.
+ * Rendered files are cached per template version and client attributes, so
+ * each client's file is rendered once.
+ */
+public class Templates {
+
+	/* Rendered files cached, and largest template */
+	private static final int CACHE_ENTRIES = 4096;
+	private static final int MAX_TEMPLATE_SIZE = 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final Statistics.Counter Renders = Statistics.Counter("tftp_template_renders");
+	public static final Statistics.Counter Hits = Statistics.Counter("tftp_template_cache_hits");
+
+	/* Patterns of requested paths, and the template for each */
+	private final List<PathMatcher> patterns = new ArrayList<PathMatcher>();
+	private final List<String> templates = new ArrayList<String>();
+	/* Parsed templates, keyed by path */
+	private final Map<String, Template> parsed = new HashMap<String, Template>();
+	/* Rendered files, keyed by template, version and client attributes, in order of use */
+	private final LinkedHashMap<String, ByteBuffer> rendered = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+	/* A template split into literal text and the names of the attributes between them */
+	private static class Template {
+
+		private final String version;
+		private final List<String> parts;
+
+		public Template(String version, String text) {
+			this.version = version;
+			this.parts = Parse(text);
+		}
+
+		/* Render the template for a client */
+		public ByteBuffer render(Map<String, String> client) {
+			return ByteBuffer.wrap(Substitute(parts, client).getBytes(UTF8));
+		}
+	}
+
+	/*
+	 * Split text into literal text (at even indices) and the names of the
+	 * "${name}" attributes between them (at odd indices)
+	 */
+	static List<String> Parse(String text) {
+		List<String> parts = new ArrayList<String>();
+		int pos = 0;
+		while (true) {
+			int start = text.indexOf("${", pos);
+			int end = start < 0 ? -1 : text.indexOf('}', start + 2);
+			if (end < 0) {
+				parts.add(text.substring(pos));
+				break;
+			}
+			parts.add(text.substring(pos, start));
+			parts.add(text.substring(start + 2, end));
+			pos = end + 1;
+		}
+		return parts;
+	}
+
+	/*
+	 * Join parsed text with a client's attributes, those the client does
+	 * not have are left as they are
+	 */
+	static String Substitute(List<String> parts, Map<String, String> client) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < parts.size(); i++) {
+			String part = parts.get(i);
+			if (i % 2 == 0)
+				s.append(part);
+			else if (client.containsKey(part))
+				s.append(client.get(part));
+			else
+				s.append("${").append(part).append('}');
+		}
+		return s.toString();
+	}
+
+	/*
+	 * Parse the space-separated "pattern=template" pairs of the
+	 * configuration, templates are relative paths in the root
+	 */
+	public Templates(String config) throws IOException {
+		for (String pair : config.trim().split("\\s+")) {
+			if (pair.length() == 0)
+				continue;
+			int eq = pair.indexOf('=');
+			if (eq <= 0 || eq == pair.length() - 1)
+				throw new IOException("Template \"" + pair + "\" is not of the form pattern=template");
+			patterns.add(FileSystems.getDefault().getPathMatcher("glob:" + pair.substring(0, eq)));
+			templates.add(pair.substring(eq + 1));
+		}
+	}
+
+	/* Are there no templates? */
+	public boolean isEmpty() {
+		return patterns.isEmpty();
+	}
+
+	/*
+	 * Render the file with a requested path (relative to the root) for a
+	 * client, returns null if the path matches no template or the template
+	 * does not exist
+	 */
+	public Content render(Root root, String filename, Map<String, String> client) throws IOException {
+		String template = null;
+		for (int i = 0; i < patterns.size() && template == null; i++)
+			if (patterns.get(i).matches(Paths.get(filename)))
+				template = templates.get(i);
+		if (template == null)
+			return null;
+		String version = root.version(template);
+		if (version == null)
+			return null;
+		String key = template + "\0" + version + "\0" + new TreeMap<String, String>(client);
+		ByteBuffer b;
+		synchronized (this) {
+			b = rendered.get(key);
+		}
+		if (b != null)
+			Hits.increment();
+		else {
+			b = parse(root, template, version).render(client);
+			Renders.increment();
+			synchronized (this) {
+				rendered.put(key, b);
+				if (rendered.size() > CACHE_ENTRIES)
+					rendered.remove(rendered.keySet().iterator().next());
+			}
+		}
+		return new MemoryContent(b, filename);
+	}
+
+	/* Get a template, reading and parsing it if it has changed */
+	private Template parse(Root root, String template, String version) throws IOException {
+		synchronized (this) {
+			Template t = parsed.get(template);
+			if (t != null && t.version.equals(version))
+				return t;
+		}
+		Content content = root.open(template);
+		try {
+			if (content.getSize() > MAX_TEMPLATE_SIZE)
+				throw new IOException("Template " + template + " is larger than " + MAX_TEMPLATE_SIZE + " bytes");
+			byte[] text = new byte[(int) content.getSize()];
+			Content.Cursor cursor = content.cursor();
+			for (int done = 0; done < text.length;) {
+				ByteBuffer b = cursor.read(done, Math.min(text.length - done, 65536));
+				int n = b.remaining();
+				if (n == 0)
+					break;
+				b.get(text, done, n);
+				done += n;
+			}
+			Template t = new Template(version, new String(text, UTF8));
+			synchronized (this) {
+				parsed.put(template, t);
+			}
+			return t;
+		}
+		finally {
+			content.release();
+		}
+	}
+
+}
@@ -0,0 +1,400 @@
+package battlesnake.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import battlesnake.logging.Log;
+import battlesnake.utils.Path;
+
+/*
+ * A file being uploaded by a client, into the client's own folder. Data is
+ * gathered into batches which are written by background threads, so a
+ * slow disk never holds up the receiver. The file is written as
+ * <name>.part, extended ahead of the data (to the announced size if there
+ * is one) rather than by every write, and renamed into place once all of
+ * it is on disk. The files in a client's folder and its uploads in
+ * progress are limited to a quota.
+ */
+public class Upload {
+
+	/* Size of a batch, and number of batches per upload */
+	private static final int BATCH_SIZE = 1024 * 1024;
+	private static final int BATCHES = 4;
+	/* Step by which a file of unknown size is extended */
+	private static final long EXTEND_SIZE = 16L * 1024 * 1024;
+	/* Suffix of a file while it is being uploaded */
+	public static final String PART_SUFFIX = ".part";
+	/* Number of threads writing batches */
+	private static final int WRITERS = 2;
+
+	/* Writes the batches of all uploads */
+	private static ExecutorService Writers = null;
+	/* Clients with uploads in progress, keyed by folder */
+	private static final Map<String, Client> Clients = new HashMap<String, Client>();
+
+	/* A client's uploads in progress */
+	private static class Client {
+
+		private final String folder;
+		/* Bytes in the client's folder, excluding files being uploaded */
+		private long stored = 0;
+		private final List<Upload> active = new ArrayList<Upload>();
+
+		public Client(String folder) {
+			this.folder = folder;
+		}
+
+		/* Bytes that count against the quota */
+		private synchronized long getUsage() {
+			long usage = stored;
+			for (Upload u : active)
+				usage += u.size;
+			return usage;
+		}
+	}
+
+	/* An upload would take its client over its quota */
+	public static class QuotaExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public QuotaExceededException(String message) {
+			super(message);
+		}
+	}
+
+	private final Client client;
+	private final long quota;
+	private final File target;
+	private final File part;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	/* Empty batches, the batch being filled and its offset in the file */
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BATCHES);
+	private ByteBuffer batch = null;
+	private long offset = 0;
+	/* Bytes received */
+	private volatile long size = 0;
+	/* All the data has been received, or the upload abandoned */
+	private volatile boolean finished = false;
+	/*
+	 * Length the file has been extended to, batches being written, the
+	 * first write error, and what saves or deletes the file once the last
+	 * batch has been written
+	 */
+	private long length = 0;
+	private int writing = 0;
+	private IOException failure = null;
+	private Runnable completion = null;
+
+	/*
+	 * Start an upload of a file (a relative path) into a client's folder,
+	 * limited to quota bytes for the whole folder (0 for no limit).
+	 * expected is the size announced by the client, 0 if it is unknown.
+	 */
+	public static Upload Create(String folder, String filename, long expected, long quota) throws IOException {
+		String name = Path.ParseDots(Path.Slashify(filename), false, false);
+		if (name.length() == 0 || name.endsWith(PART_SUFFIX))
+			throw new IOException("Cannot upload \"" + filename + "\", not a valid file name");
+		folder = Path.IncludeTrailingSlash(Path.Slashify(folder));
+		File target = new File(folder + name);
+		synchronized (Clients) {
+			Client client = Clients.get(folder);
+			if (client == null)
+				client = new Client(folder);
+			synchronized (client) {
+				for (Upload u : client.active)
+					if (u.target.equals(target))
+						throw new IOException(name + " is already being uploaded");
+				/* A file being replaced does not count against the quota */
+				client.stored = Usage(client, target);
+				if (quota > 0 && client.getUsage() + expected > quota)
+					throw new QuotaExceededException("Upload quota of " + quota + " bytes exceeded");
+				Upload u = new Upload(client, quota, target, expected);
+				client.active.add(u);
+				Clients.put(folder, client);
+				return u;
+			}
+		}
+	}
+
+	private Upload(Client client, long quota, File target, long expected) throws IOException {
+		this.client = client;
+		this.quota = quota;
+		this.target = target;
+		this.part = new File(target.getPath() + PART_SUFFIX);
+		File parent = part.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Cannot create folder " + parent);
+		file = new RandomAccessFile(part, "rw");
+		channel = file.getChannel();
+		try {
+			file.setLength(0);
+			if (expected > 0) {
+				file.setLength(expected);
+				length = expected;
+			}
+		}
+		catch (IOException e) {
+			file.close();
+			part.delete();
+			throw e;
+		}
+		for (int i = 0; i < BATCHES; i++)
+			free.add(ByteBuffer.allocateDirect(BATCH_SIZE));
+	}
+
+	/* Property getter */
+	public long getSize() {
+		return size;
+	}
+
+	/* Property getter */
+	public String getFilename() {
+		return target.getPath();
+	}
+
+	/*
+	 * Append data. Returns false without taking any of it if every batch
+	 * is waiting for the disk, in which case the client should be left to
+	 * send it again.
+	 */
+	public boolean write(ByteBuffer data) throws IOException {
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+		}
+		int n = data.remaining();
+		if (batch == null && (batch = free.poll()) == null)
+			return false;
+		if (n > batch.remaining() && free.isEmpty())
+			return false;
+		if (quota > 0 && client.getUsage() + n > quota)
+			throw new QuotaExceededException("Upload quota of " + quota + " bytes exceeded");
+		int limit = data.limit();
+		while (data.hasRemaining()) {
+			if (!batch.hasRemaining()) {
+				submit();
+				batch = free.poll();
+			}
+			data.limit(data.position() + Math.min(data.remaining(), batch.remaining()));
+			batch.put(data);
+			data.limit(limit);
+		}
+		size += n;
+		if (!batch.hasRemaining())
+			submit();
+		return true;
+	}
+
+	/*
+	 * All the data has been received: once it has been written, cut the
+	 * file to its size, flush it to disk and rename it into place. Returns
+	 * at once, the file is saved by a writer thread once the last batch
+	 * has been written.
+	 */
+	public void finish() throws IOException {
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+		}
+		if (batch != null && batch.position() > 0)
+			submit();
+		finished = true;
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	/* Abandon the upload, deleting what has been written of it */
+	public void abort() {
+		if (finished)
+			return;
+		finished = true;
+		batch = null;
+		complete(new Runnable() {
+			@Override
+			public void run() {
+				close(false);
+			}
+		});
+	}
+
+	/*
+	 * Run a task on a writer thread once every batch has been written: by
+	 * the writer of the last batch, or at once if none are being written.
+	 * No writer ever waits for another, so uploads finishing together
+	 * cannot take up every writer while their batches wait behind them.
+	 */
+	private void complete(Runnable task) {
+		synchronized (this) {
+			if (writing > 0) {
+				completion = task;
+				return;
+			}
+		}
+		Writers().execute(task);
+	}
+
+	/* Hand the batch being filled to a writer thread */
+	private void submit() {
+		final ByteBuffer b = batch;
+		final long position = offset;
+		batch = null;
+		b.flip();
+		offset += b.remaining();
+		synchronized (this) {
+			writing++;
+		}
+		Writers().execute(new Runnable() {
+			@Override
+			public void run() {
+				write(b, position);
+			}
+		});
+	}
+
+	/* Write a batch, from a writer thread */
+	private void write(ByteBuffer b, long position) {
+		try {
+			extend(position + b.remaining());
+			while (b.hasRemaining())
+				position += channel.write(b, position);
+		}
+		catch (IOException e) {
+			synchronized (this) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		finally {
+			b.clear();
+			free.add(b);
+			Runnable next = null;
+			synchronized (this) {
+				if (--writing == 0) {
+					next = completion;
+					completion = null;
+				}
+			}
+			if (next != null)
+				next.run();
+		}
+	}
+
+	/* Extend the file ahead of the data, so that it is not extended by every write */
+	private synchronized void extend(long end) throws IOException {
+		if (end <= length)
+			return;
+		length = Math.max(end, length + EXTEND_SIZE);
+		file.setLength(length);
+	}
+
+	/* Save the file once it has been written, from a writer thread */
+	private void save() {
+		boolean saved = false;
+		try {
+			synchronized (this) {
+				if (failure != null)
+					throw failure;
+			}
+			channel.truncate(size);
+			channel.force(true);
+			file.close();
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			saved = true;
+			Log.Add(this, Log.TYPE_INFO, "Saved upload " + target + " (" + size + " bytes)");
+		}
+		catch (IOException e) {
+			Log.Add(this, Log.TYPE_ERR, "Cannot save upload " + target + ": " + e.getMessage());
+		}
+		finally {
+			close(saved);
+		}
+	}
+
+	/* Close the file, deleting it unless it was saved, and end the upload */
+	private void close(boolean saved) {
+		try {
+			file.close();
+		}
+		catch (IOException e) {
+		}
+		if (!saved)
+			part.delete();
+		synchronized (Clients) {
+			synchronized (client) {
+				client.active.remove(this);
+				if (saved)
+					client.stored += size;
+				if (client.active.isEmpty() && Clients.get(client.folder) == client)
+					Clients.remove(client.folder);
+			}
+		}
+	}
+
+	/*
+	 * Bytes in a client's folder, excluding partly uploaded files and the
+	 * files that uploads in progress will replace
+	 */
+	private static long Usage(final Client client, final File replacing) throws IOException {
+		File folder = new File(client.folder);
+		if (!folder.isDirectory())
+			return 0;
+		final long[] usage = new long[1];
+		Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<java.nio.file.Path>() {
+			@Override
+			public FileVisitResult visitFile(java.nio.file.Path path, BasicFileAttributes attrs) {
+				File f = path.toFile();
+				if (!attrs.isRegularFile() || f.getName().endsWith(PART_SUFFIX) || f.equals(replacing))
+					return FileVisitResult.CONTINUE;
+				for (Upload u : client.active)
+					if (f.equals(u.target))
+						return FileVisitResult.CONTINUE;
+				usage[0] += attrs.size();
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return usage[0];
+	}
+
+	/* Get the writer threads, starting them if need be */
+	private static synchronized ExecutorService Writers() {
+		if (Writers == null)
+			Writers = Executors.newFixedThreadPool(WRITERS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Upload writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return Writers;
+	}
+
+	@Override
+	public String toString() {
+		return target.getPath();
+	}
+
+}
@@ -0,0 +1,125 @@
+package battlesnake.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import battlesnake.utils.Path;
+
+/*
+ * Files which are not stored anywhere but made of other files one after
+ * another, e.g. a shared initrd with a per-client overlay archive appended,
+ * so that no concatenated copy has to be written for each client. Each
+ * part is a relative path in the root, in which "${name}" is replaced with
+ * the client's attribute of that name, optionally followed by "@offset" or
+ * "@offset:length" to take only that byte range of it.
+ */
+public class VirtualFiles {
+
+	/* Parts of each virtual file, keyed by its path */
+	private final Map<String, List<Part>> files = new HashMap<String, List<Part>>();
+
+	/* A byte range of a file, length -1 for the rest of the file */
+	private static class Part {
+
+		private final String path;
+		private final long offset;
+		private final long length;
+		/* The path split around its attributes (see Templates.Parse) */
+		private final List<String> parts;
+
+		public Part(String part) throws IOException {
+			int at = part.lastIndexOf('@');
+			try {
+				if (at < 0) {
+					path = part;
+					offset = 0;
+					length = -1;
+				}
+				else {
+					path = part.substring(0, at);
+					String range = part.substring(at + 1);
+					int colon = range.indexOf(':');
+					offset = Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+					length = colon < 0 ? -1 : Long.parseLong(range.substring(colon + 1));
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Virtual file part \"" + part + "\" has an invalid byte range");
+			}
+			if (path.length() == 0 || offset < 0 || (length < 0 && length != -1))
+				throw new IOException("Virtual file part \"" + part + "\" is not of the form path[@offset[:length]]");
+			parts = Templates.Parse(path);
+		}
+
+		/* The path of the part for a client, attributes it does not have are left as they are */
+		private String getPath(Map<String, String> client) {
+			return Templates.Substitute(parts, client);
+		}
+	}
+
+	/*
+	 * Parse the space-separated "path=part,part,..." declarations of the
+	 * configuration, paths are relative to the root
+	 */
+	public VirtualFiles(String config) throws IOException {
+		for (String file : config.trim().split("\\s+")) {
+			if (file.length() == 0)
+				continue;
+			int eq = file.indexOf('=');
+			if (eq <= 0 || eq == file.length() - 1)
+				throw new IOException("Virtual file \"" + file + "\" is not of the form path=part,part,...");
+			List<Part> parts = new ArrayList<Part>();
+			for (String part : file.substring(eq + 1).split(","))
+				parts.add(new Part(part));
+			files.put(Path.ParseDots(Path.Slashify(file.substring(0, eq)), false, false), parts);
+		}
+	}
+
+	/* Are there no virtual files? */
+	public boolean isEmpty() {
+		return files.isEmpty();
+	}
+
+	/*
+	 * Open the virtual file with a requested path (relative to the root)
+	 * for a client, returns null if there is no such virtual file or one
+	 * of its parts does not exist
+	 */
+	public Content open(Root root, String filename, Map<String, String> client) throws IOException {
+		List<Part> parts = files.get(filename);
+		if (parts == null)
+			return null;
+		Content[] contents = new Content[parts.size()];
+		long[] offsets = new long[parts.size()];
+		long[] lengths = new long[parts.size()];
+		int n = 0;
+		boolean opened = false;
+		try {
+			for (Part part : parts) {
+				String path = part.getPath(client);
+				Content c = root.lookup(path);
+				if (c == null)
+					return null;
+				contents[n] = c;
+				offsets[n] = part.offset;
+				lengths[n] = part.length >= 0 ? part.length : c.getSize() - part.offset;
+				n++;
+				if (part.offset + lengths[n - 1] > c.getSize() || lengths[n - 1] < 0)
+					throw new IOException("Part " + path + " of virtual file " + filename + " is shorter than its byte range");
+			}
+			Content content = new ConcatContent(filename, contents, offsets, lengths);
+			opened = true;
+			return content;
+		}
+		/* Release the parts unless they were handed to the virtual file */
+		finally {
+			if (!opened)
+				for (int i = 0; i < n; i++)
+					contents[i].release();
+		}
+	}
+
+}
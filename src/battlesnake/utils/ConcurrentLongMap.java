@@ -0,0 +1,172 @@
+package battlesnake.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A concurrent hash map with primitive long keys. The map is split into
+ * independently locked segments, each an open-addressing table with linear
+ * probing, so lookups neither box the key nor allocate.
+ */
+public class ConcurrentLongMap<V> {
+
+	private static final int SEGMENTS = 16;
+
+	private final Segment<V>[] segments;
+
+	@SuppressWarnings("unchecked")
+	public ConcurrentLongMap() {
+		segments = (Segment<V>[]) new Segment<?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment<V>();
+	}
+
+	/* Spread the bits of a key (64-bit finalizer of MurmurHash3) */
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private Segment<V> segment(long hash) {
+		return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+	}
+
+	/* Get the value for a key, or null */
+	public V get(long key) {
+		long h = hash(key);
+		return segment(h).get(key, (int) h);
+	}
+
+	/* Set the value for a key, returns the previous value (or null) */
+	public V put(long key, V value) {
+		long h = hash(key);
+		return segment(h).put(key, (int) h, value);
+	}
+
+	/* Set the value for a key if it has none, returns the existing value (or null) */
+	public V putIfAbsent(long key, V value) {
+		long h = hash(key);
+		return segment(h).putIfAbsent(key, (int) h, value);
+	}
+
+	/* Remove a key if it maps to the given value */
+	public boolean remove(long key, V value) {
+		long h = hash(key);
+		return segment(h).remove(key, (int) h, value);
+	}
+
+	/* Number of entries */
+	public int size() {
+		int n = 0;
+		for (Segment<V> s : segments)
+			n += s.size();
+		return n;
+	}
+
+	/* Snapshot of the values */
+	public List<V> values() {
+		List<V> list = new ArrayList<V>();
+		for (Segment<V> s : segments)
+			s.values(list);
+		return list;
+	}
+
+	/* An open-addressing table, a slot is in use if its value is not null */
+	private static class Segment<V> {
+
+		private long[] keys = new long[16];
+		private Object[] values = new Object[16];
+		private int count = 0;
+
+		@SuppressWarnings("unchecked")
+		public synchronized V get(long key, int hash) {
+			int mask = keys.length - 1;
+			for (int i = hash & mask; values[i] != null; i = (i + 1) & mask)
+				if (keys[i] == key)
+					return (V) values[i];
+			return null;
+		}
+
+		public synchronized V put(long key, int hash, V value) {
+			return insert(key, hash, value, true);
+		}
+
+		public synchronized V putIfAbsent(long key, int hash, V value) {
+			return insert(key, hash, value, false);
+		}
+
+		@SuppressWarnings("unchecked")
+		private V insert(long key, int hash, V value, boolean replace) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask)
+				if (keys[i] == key) {
+					V old = (V) values[i];
+					if (replace)
+						values[i] = value;
+					return old;
+				}
+			keys[i] = key;
+			values[i] = value;
+			/* Keep the load factor below 1/2 */
+			if (++count * 2 > keys.length)
+				resize();
+			return null;
+		}
+
+		public synchronized boolean remove(long key, int hash, V value) {
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask)
+				if (keys[i] == key)
+					break;
+			if (values[i] == null || values[i] != value)
+				return false;
+			/* Shift following entries back into the gap, so probes never cross an empty slot */
+			int gap = i;
+			for (i = (i + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+				int home = (int) hash(keys[i]) & mask;
+				if (((i - home) & mask) >= ((i - gap) & mask)) {
+					keys[gap] = keys[i];
+					values[gap] = values[i];
+					gap = i;
+				}
+			}
+			values[gap] = null;
+			count--;
+			return true;
+		}
+
+		public synchronized int size() {
+			return count;
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized void values(List<V> list) {
+			for (Object v : values)
+				if (v != null)
+					list.add((V) v);
+		}
+
+		private void resize() {
+			long[] oldkeys = keys;
+			Object[] oldvalues = values;
+			keys = new long[oldkeys.length * 2];
+			values = new Object[oldvalues.length * 2];
+			int mask = keys.length - 1;
+			for (int j = 0; j < oldkeys.length; j++)
+				if (oldvalues[j] != null) {
+					int i = (int) hash(oldkeys[j]) & mask;
+					while (values[i] != null)
+						i = (i + 1) & mask;
+					keys[i] = oldkeys[j];
+					values[i] = oldvalues[j];
+				}
+		}
+	}
+
+}
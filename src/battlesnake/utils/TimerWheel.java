@@ -0,0 +1,164 @@
+package battlesnake.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import battlesnake.logging.Log;
+
+/*
+ * A hashed timer wheel, driven by its own thread and the monotonic clock.
+ * Scheduling and cancelling a timer are O(1) and do not allocate, since the
+ * timers are linked directly into the wheel's slots.
+ */
+public class TimerWheel {
+
+	/* A timer, which may be scheduled any number of times */
+	public static abstract class Timer {
+
+		private TimerWheel wheel = null;
+		private Timer prev = null, next = null;
+		private long deadline = 0;
+		/*
+		 * Bumped whenever the timer is scheduled or cancelled, and the
+		 * value it had when the timer was found to be due
+		 */
+		private volatile long generation = 0;
+		private long due = -1;
+
+		/* Called from the wheel's thread when the timer expires */
+		protected abstract void expire() throws Exception;
+
+		/* Is the timer scheduled? */
+		public boolean isScheduled() {
+			return wheel != null;
+		}
+
+		/*
+		 * Has the timer been cancelled or scheduled again since it was
+		 * found to be due? Timers which are cancelled under a lock of
+		 * their own should check this from expire() under that lock, as
+		 * the timer may be cancelled after the wheel has checked it and
+		 * before expire() takes the lock.
+		 */
+		protected boolean isCancelled() {
+			return generation != due;
+		}
+	}
+
+	private final String name;
+	private final long tick;
+	private final Timer[] slots;
+	private final Thread thread;
+	/* Tick currently being processed */
+	private long current;
+	private boolean stopping = false;
+
+	/* Create a wheel of slotcount slots, each tickms milliseconds apart */
+	public TimerWheel(String name, int tickms, int slotcount) {
+		this.name = name;
+		this.tick = tickms * 1000000L;
+		this.slots = new Timer[slotcount];
+		this.current = Math.floorDiv(System.nanoTime(), tick);
+		this.thread = new Thread(name) {
+			@Override
+			public void run() {
+				TimerWheel.this.run();
+			}
+		};
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/* Stop the wheel's thread, pending timers will not expire */
+	public void stop() {
+		synchronized (this) {
+			stopping = true;
+		}
+		thread.interrupt();
+	}
+
+	/* Schedule a timer, replacing any previous schedule of it */
+	public synchronized void schedule(Timer t, long delayms) {
+		if (t.wheel != null)
+			t.wheel.unlink(t);
+		t.generation++;
+		/* Round up, a timer never expires early (System.nanoTime may be negative, hence floorDiv and floorMod) */
+		t.deadline = Math.floorDiv(System.nanoTime() + delayms * 1000000L + tick - 1, tick);
+		if (t.deadline <= current)
+			t.deadline = current + 1;
+		int slot = (int) Math.floorMod(t.deadline, (long) slots.length);
+		t.wheel = this;
+		t.prev = null;
+		t.next = slots[slot];
+		if (t.next != null)
+			t.next.prev = t;
+		slots[slot] = t;
+	}
+
+	/* Cancel a timer, if it is scheduled or about to expire */
+	public synchronized void cancel(Timer t) {
+		if (t.wheel == this)
+			unlink(t);
+		t.generation++;
+	}
+
+	/* Remove a timer from its slot */
+	private void unlink(Timer t) {
+		int slot = (int) Math.floorMod(t.deadline, (long) slots.length);
+		if (t.prev != null)
+			t.prev.next = t.next;
+		else
+			slots[slot] = t.next;
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.wheel = null;
+	}
+
+	/* Advance the wheel one tick at a time, expiring due timers */
+	private void run() {
+		List<Timer> expired = new ArrayList<Timer>();
+		while (true) {
+			synchronized (this) {
+				if (stopping)
+					return;
+				long now = Math.floorDiv(System.nanoTime(), tick);
+				/* Catch up on any ticks missed while busy */
+				while (current < now) {
+					current++;
+					Timer t = slots[(int) Math.floorMod(current, (long) slots.length)];
+					while (t != null) {
+						Timer next = t.next;
+						if (t.deadline <= current) {
+							unlink(t);
+							t.due = t.generation;
+							expired.add(t);
+						}
+						t = next;
+					}
+				}
+			}
+			/*
+			 * Run expired timers outside of the lock, so they can
+			 * re-schedule themselves, unless they were cancelled or
+			 * re-scheduled since. An Error is caught too, as it would
+			 * otherwise stop every timer on the wheel.
+			 */
+			for (Timer t : expired)
+				try {
+					if (!t.isCancelled())
+						t.expire();
+				}
+				catch (Throwable e) {
+					Log.Add(name, Log.TYPE_ERR, "Untrapped error (" + e.getClass().getSimpleName() + ") in timer: " + e.getMessage());
+				}
+			expired.clear();
+			try {
+				Thread.sleep(tick / 1000000L);
+			}
+			catch (InterruptedException e) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package battlesnake.utils;
+
+/*
+ * A token bucket, for limiting the rate at which bytes are sent. Tokens
+ * accumulate at the given rate, up to the burst size. A sender asks how
+ * long it must wait before it may send, then takes the tokens when it
+ * sends. Taking tokens never fails, so a bucket can go into debt for
+ * traffic which cannot wait.
+ */
+public class TokenBucket {
+
+	/* Tokens per second, and the most tokens the bucket holds */
+	private final long rate;
+	private final long burst;
+	private double tokens;
+	/* Time of the last refill (System.nanoTime) */
+	private long last;
+
+	/* Create a full bucket */
+	public TokenBucket(long rate, long burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.last = System.nanoTime();
+	}
+
+	/*
+	 * Add the tokens accumulated since the last refill. A time taken on
+	 * another thread before the last refill adds nothing, rather than
+	 * taking tokens and moving the last refill back.
+	 */
+	private void refill(long now) {
+		if (now - last <= 0)
+			return;
+		tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+		last = now;
+	}
+
+	/* Nanoseconds until n tokens are available, 0 if they are now */
+	public synchronized long delay(long n, long now) {
+		refill(now);
+		n = Math.min(n, burst);
+		return tokens >= n ? 0 : (long) Math.ceil((n - tokens) * 1e9 / rate);
+	}
+
+	/* Take n tokens */
+	public synchronized void take(long n, long now) {
+		refill(now);
+		tokens -= n;
+	}
+
+	/* Is the bucket full, meaning it has not been used for a while? */
+	public synchronized boolean isFull(long now) {
+		refill(now);
+		return tokens >= burst;
+	}
+
+}